@@ -5,12 +5,23 @@
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class HashID {
 
+    // Looking up a MessageDigest is slow and one can't be shared between
+    // threads, so each thread keeps its own and reuses it.
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+	try {
+	    return MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    });
+
     public static byte [] computeHashID(String s) throws Exception {
 	// What this does and how it works is covered in a later lecture
-	MessageDigest md = MessageDigest.getInstance("SHA-256");
+	MessageDigest md = SHA_256.get();
 	md.update(s.getBytes(StandardCharsets.UTF_8));
 	return md.digest();
     }
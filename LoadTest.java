@@ -0,0 +1,208 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// A load test for networks much bigger than LocalTest can build.
+// It starts any number of Nodes in this process on loopback ports,
+// bootstraps them into a random topology with W requests for N: keys,
+// and then drives a mix of reads, writes, CAS and exists from random
+// nodes with a fixed number of operations in flight.  At the end it
+// prints the throughput and the p50/p99/p999 latency of each operation,
+// and how often the nodes had to retransmit or saw repeats.
+//
+// Build from the directory holding Node.java, then run:
+//   javac -encoding UTF-8 -d out Node.java CRN/src/HashID.java LoadTest.java
+//   java -cp out LoadTest [nodes] [seconds] [seed] [base port] [in flight] [loss %] [delay ms]
+// For example, 500 nodes for 30 seconds with a different topology:
+//   java -cp out LoadTest 500 30 7
+// or 200 nodes where 10% of packets are lost and each takes 5-10 ms:
+//   java -cp out LoadTest 200 10 23 21000 32 10 5
+//
+// Every node has its own socket and listening thread, so a few thousand
+// nodes may need a larger ulimit -n.
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class LoadTest {
+    static final int KEYS = 1000;
+    static final int MIN_CONTACTS = 3;
+
+    // Share of each operation in the workload, in percent.
+    static final int READS = 60;
+    static final int WRITES = 20;
+    static final int CASES = 10;
+    static final int EXISTS = 10;
+
+    enum Operation { READ, WRITE, CAS, EXISTS }
+
+    public static void main(String[] args) throws Exception {
+        int numberOfNodes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 23;
+        int basePort = args.length > 3 ? Integer.parseInt(args[3]) : 21000;
+        int inFlight = args.length > 4 ? Integer.parseInt(args[4]) : 32;
+        double loss = args.length > 5 ? Double.parseDouble(args[5]) / 100 : 0;
+        int delay = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+
+        Node[] nodes = new Node[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; ++i) {
+            nodes[i] = new Node();
+            nodes[i].setNodeName("N:load" + i);
+            nodes[i].openPort(basePort + i);
+        }
+        int contacts = bootstrap(nodes, basePort, seed);
+        System.out.printf("%d nodes on ports %d-%d, %d bootstrap contacts (seed %d)%n",
+                numberOfNodes, basePort, basePort + numberOfNodes - 1, contacts, seed);
+        // Only after bootstrapping, which should not be lost.
+        if (loss > 0 || delay > 0) {
+            Node.NetworkConditions network = new Node.NetworkConditions().loss(loss).delay(delay, delay);
+            for (Node node : nodes) node.setNetworkConditions(network);
+            System.out.printf("%.0f%% loss, %d-%d ms delay on every send%n", loss * 100, delay, 2 * delay);
+        }
+        Thread.sleep(1000);
+
+        Random random = new Random(seed);
+        String[] keys = new String[KEYS];
+        CompletableFuture<?>[] loaded = new CompletableFuture<?>[KEYS];
+        for (int k = 0; k < KEYS; ++k) {
+            keys[k] = "D:load-" + k;
+            loaded[k] = nodes[random.nextInt(numberOfNodes)].writeAsync(keys[k], "0");
+        }
+        CompletableFuture.allOf(loaded).exceptionally(e -> null).join();
+
+        Latencies[] latencies = new Latencies[Operation.values().length];
+        for (Operation op : Operation.values()) latencies[op.ordinal()] = new Latencies();
+        Semaphore window = new Semaphore(inFlight);
+        long start = System.nanoTime(), deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < deadline) {
+            window.acquire();
+            Node node = nodes[random.nextInt(numberOfNodes)];
+            String key = keys[random.nextInt(KEYS)];
+            int roll = random.nextInt(READS + WRITES + CASES + EXISTS);
+            Operation op;
+            CompletableFuture<?> result;
+            // Taken before the call, which may do part of the work inline.
+            long issued = System.nanoTime();
+            if (roll < READS) {
+                op = Operation.READ;
+                result = node.readAsync(key);
+            } else if ((roll -= READS) < WRITES) {
+                op = Operation.WRITE;
+                result = node.writeAsync(key, Integer.toString(random.nextInt(100)));
+            } else if ((roll -= WRITES) < CASES) {
+                op = Operation.CAS;
+                result = node.casAsync(key, Integer.toString(random.nextInt(100)),
+                        Integer.toString(random.nextInt(100)));
+            } else {
+                op = Operation.EXISTS;
+                result = node.existsAsync(key);
+            }
+            result.whenComplete((value, error) -> {
+                latencies[op.ordinal()].add(System.nanoTime() - issued,
+                        error == null && value != null && !Boolean.FALSE.equals(value));
+                window.release();
+            });
+        }
+        window.acquire(inFlight);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long total = 0;
+        System.out.printf("%-7s %8s %9s %8s %9s %9s %9s%n", "op", "count", "ops/s", "ok", "p50 ms", "p99 ms", "p999 ms");
+        for (Operation op : Operation.values()) {
+            Latencies l = latencies[op.ordinal()];
+            total += l.count();
+            System.out.printf("%-7s %8d %9.0f %7.1f%% %9.2f %9.2f %9.2f%n", op, l.count(), l.count() / elapsed,
+                    100.0 * l.succeeded() / Math.max(1, l.count()),
+                    l.percentile(0.5) / 1e6, l.percentile(0.99) / 1e6, l.percentile(0.999) / 1e6);
+        }
+        System.out.printf("total   %8d %9.0f%n", total, total / elapsed);
+
+        long retransmissions = 0, timeouts = 0, duplicates = 0, unmatched = 0;
+        for (Node node : nodes) {
+            Node.MetricsSnapshot metrics = node.metrics();
+            retransmissions += metrics.retransmissions();
+            timeouts += metrics.timeouts();
+            duplicates += metrics.duplicateRequests();
+            unmatched += metrics.unmatchedReplies();
+        }
+        System.out.printf("%d retransmissions, %d timeouts, %d duplicate requests, %d unmatched replies%n",
+                retransmissions, timeouts, duplicates, unmatched);
+        System.exit(0);
+    }
+
+    // Gives each node the addresses of some of the others, the way
+    // LocalTest does, but with properly encoded W requests so that any
+    // number of nodes and any node names work.  Every node is told about
+    // at least MIN_CONTACTS others so that none is left isolated.
+    static int bootstrap(Node[] nodes, int basePort, long seed) throws Exception {
+        Random r = new Random(seed);
+        int n = nodes.length;
+        double p = Math.log((double) n + 5) / (double) n;
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        Node.MessageWriter out = new Node.MessageWriter(ByteBuffer.allocateDirect(256));
+        int sent = 0;
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            for (int i = 0; i < n; ++i) {
+                InetSocketAddress target = new InetSocketAddress(loopback, basePort + i);
+                int told = 0;
+                for (int j = 0; j < n; ++j) {
+                    // Once the candidates left, not counting i itself, are
+                    // no more than the contacts still owed, take them all.
+                    int left = n - j - (i > j ? 1 : 0);
+                    boolean last = left <= MIN_CONTACTS - told;
+                    if (i == j || !(last || r.nextDouble() <= p)) continue;
+                    out.buffer.clear();
+                    out.begin(txn(sent++), 'W').string("N:load" + j).string("127.0.0.1:" + (basePort + j));
+                    channel.send(out.buffer.flip(), target);
+                    ++told;
+                    // Let the receivers keep up rather than overflow their socket buffers.
+                    if (sent % 256 == 0) Thread.sleep(1);
+                }
+            }
+        }
+        return sent;
+    }
+
+    static int txn(int i) {
+        int n = Math.floorMod(i, 94 * 94);
+        return ('!' + n / 94) << 8 | ('!' + n % 94);
+    }
+
+    // Operation latencies in nanoseconds, kept in full so that the high
+    // percentiles are exact.
+    static final class Latencies {
+        private long[] samples = new long[1024];
+        private int count;
+        private final AtomicLong succeeded = new AtomicLong();
+
+        synchronized void add(long nanos, boolean ok) {
+            if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+            samples[count++] = nanos;
+            if (ok) succeeded.incrementAndGet();
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        long succeeded() {
+            return succeeded.get();
+        }
+
+        synchronized long percentile(double p) {
+            if (count == 0) return 0;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(p * count) - 1)];
+        }
+    }
+}
@@ -0,0 +1,147 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Checks that the segment log under a store gives back what was written,
+// across restarts, compaction and crashes.  In a fresh directory it
+//   - fills COMPACT_AFTER_SEGMENTS segments and checks that exactly one
+//     compaction follows, leaving one compacted file and the active segment
+//   - reopens the directory and compares what it replays with what was written
+//   - tears the last record, reopens, appends and reopens again, checking
+//     that the torn record is dropped and the later append is not
+//   - leaves behind what an interrupted compaction would, and checks that
+//     opening cleans it up without losing anything
+// It prints each check as it goes and exits with status 1 if any failed.
+//
+// Build from the directory holding Node.java, then run:
+//   javac -encoding UTF-8 -d out Node.java CRN/src/HashID.java LogCheck.java
+//   java -cp out LogCheck [directory]
+// The directory, a temporary one by default, is removed afterwards.
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class LogCheck {
+    static final int KEYS = 1000;
+    static final int VALUE_BYTES = 4096;
+    static final long COMPACTION_WAIT_MS = 30_000;
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = args.length > 0 ? Files.createDirectories(Path.of(args[0])) : Files.createTempDirectory("log-check");
+        char[] filler = new char[VALUE_BYTES];
+        Arrays.fill(filler, 'v');
+        String padding = new String(filler);
+        Map<String, String> written = new HashMap<>();
+        try {
+            // Writes until COMPACT_AFTER_SEGMENTS segments have filled and
+            // the compactor has started, which closes the segment after them.
+            Node.StripedStore store = openStore(dir);
+            long compacted = Node.SegmentLog.COMPACT_AFTER_SEGMENTS + 1;
+            List<String> expected = List.of(name(compacted, ".compact"), name(compacted + 1, ".log"));
+            long deadline = System.currentTimeMillis() + COMPACTION_WAIT_MS;
+            for (int i = 0; !files(dir).contains(expected.get(1)) && System.currentTimeMillis() < deadline; )
+                for (int batch = 0; batch < 100; ++batch, ++i) put(store, written, "D:check-" + i % KEYS, i + padding);
+            while (!files(dir).equals(expected) && System.currentTimeMillis() < deadline) Thread.sleep(50);
+            // A second compaction, if one were coming, would follow straight on.
+            Thread.sleep(1000);
+            check(files(dir).equals(expected), "one compaction after filling "
+                    + Node.SegmentLog.COMPACT_AFTER_SEGMENTS + " segments: " + files(dir));
+            check(matches(store, written), "store holds every write");
+            store.log.close();
+
+            store = openStore(dir);
+            check(matches(store, written), "reopening replays the compacted file and the active segment");
+            put(store, written, "D:check-last", "before the tear");
+            store.log.close();
+
+            // A write torn by a crash: the size and key length made it to the
+            // disk, the rest did not.
+            List<String> before = files(dir);
+            Path active = dir.resolve(before.get(before.size() - 1));
+            int end = endOfRecords(active);
+            try (FileChannel file = FileChannel.open(active, StandardOpenOption.WRITE)) {
+                file.write(ByteBuffer.allocate(8).putInt(100).putInt(12).flip(), end);
+            }
+            store = openStore(dir);
+            check(matches(store, written), "a torn record is dropped");
+            put(store, written, "D:check-torn", "after the tear");
+            store.log.close();
+            store = openStore(dir);
+            check(matches(store, written), "a write after the torn record survives the next restart");
+            store.log.close();
+
+            // A compaction that was interrupted, once before its rename and
+            // once before deleting the segments it replaced.
+            long last = Long.parseLong(active.getFileName().toString().substring(0, 16));
+            Files.write(dir.resolve(name(last, ".compact.tmp")), new byte[64]);
+            Files.write(dir.resolve(name(last - 1, ".log")), new byte[64]);
+            store = openStore(dir);
+            check(files(dir).equals(before), "opening clears an interrupted compaction: " + files(dir));
+            check(matches(store, written), "and keeps every write");
+
+            store.log.compact();
+            expected = List.of(name(last, ".compact"), name(last + 1, ".log"));
+            check(files(dir).equals(expected), "compacting by hand replaces every full segment: " + files(dir));
+            store.log.close();
+            store = openStore(dir);
+            check(matches(store, written), "reopening after that replays the same pairs");
+            store.log.close();
+        } finally {
+            try (var files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+        System.out.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    static void put(Node.StripedStore store, Map<String, String> written, String key, String value) {
+        store.put(key, value);
+        written.put(key, value);
+    }
+
+    static boolean matches(Node.StripedStore store, Map<String, String> written) {
+        if (store.size() != written.size()) return false;
+        for (Map.Entry<String, String> pair : written.entrySet())
+            if (!pair.getValue().equals(store.get(pair.getKey()))) return false;
+        return true;
+    }
+
+    // Where the intact records in a segment end, which is where the next
+    // append would go.
+    static int endOfRecords(Path segment) throws Exception {
+        try (FileChannel file = FileChannel.open(segment)) {
+            return Node.SegmentLog.replay(file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()), (k, v) -> {});
+        }
+    }
+
+    static void check(boolean passed, String what) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + what);
+        if (!passed) ++failures;
+    }
+
+    static Node.StripedStore openStore(Path dir) throws Exception {
+        Node.StripedStore store = new Node.StripedStore();
+        store.log = Node.SegmentLog.open(dir, store::put, store::forEach);
+        return store;
+    }
+
+    static List<String> files(Path dir) throws Exception {
+        try (var files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    static String name(long n, String suffix) {
+        return String.format("%016d%s", n, suffix);
+    }
+}
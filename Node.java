@@ -2,6 +2,27 @@ import java.net.*;
 import java.io.*;
 import java.util.*;
 import java.security.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 // Coursework 2024/2025
 //
@@ -83,156 +104,265 @@ interface NodeInterface {
 }
 // DO NOT EDIT ends
 
+// Non-blocking versions of the CRN-25 operations in NodeInterface.
+// Each call returns straight away and the future completes once the
+// network has answered, so one thread can keep many requests in flight.
+interface AsyncNodeInterface {
+
+    // Completes with whether there is an entry in the network for key.
+    public CompletableFuture<Boolean> existsAsync(String key);
+
+    // Completes with the value stored in the network for key, or null if there isn't one.
+    public CompletableFuture<String> readAsync(String key);
+
+    // Completes with true if key was set to value.
+    public CompletableFuture<Boolean> writeAsync(String key, String value);
+
+    // Completes with true if key was set to currentValue and has been changed to newValue.
+    public CompletableFuture<Boolean> casAsync(String key, String currentValue, String newValue);
+
+    // Completes with the value of each key that has one; keys that are not
+    // in the network are left out.
+    public CompletableFuture<Map<String, String>> readAllAsync(Collection<String> keys);
+
+    // Completes with whether each key was set to its value.
+    public CompletableFuture<Map<String, Boolean>> writeAllAsync(Map<String, String> entries);
+
+}
+
 // Complete this!
-public class Node implements NodeInterface {
+public class Node implements NodeInterface, AsyncNodeInterface, Closeable {
 
     private String id;
-    private DatagramSocket commSocket;
-    private final Map<String, String> kvStore = new HashMap<>();
+    private Transport transport;
+    private Store kvStore = new StripedStore();
     private final Stack<String> relayPath = new Stack<>();
-    private final Map<String, InetSocketAddress> knownNodes = new HashMap<>();
-    private final Map<String, String> nearestNodeResponses = new HashMap<>();
-    private final Set<String> seenTransactions = Collections.newSetFromMap(new LinkedHashMap<>() {
-        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
-            return size() > 1000;
+    // relayPath ready to put in front of a request; null for none.
+    private volatile RelayHeader relayHeader;
+    private final RoutingTable knownNodes = new RoutingTable();
+    // Our requests awaiting replies, indexed by transaction ID; see newTxn.
+    private final AtomicReferenceArray<Retransmission> pendingRequests = new AtomicReferenceArray<>(TX_IDS);
+    private final AtomicInteger txSequence = new AtomicInteger(new Random().nextInt(TX_IDS));
+    private final ResponseCache responses = new ResponseCache(4096, 10_000);
+    // Requests we relayed for someone else in the last RELAY_HOLD_MS, by
+    // who sent them and under which tx; see relay.
+    private final Map<Exchange, Retransmission> relayed = new ConcurrentHashMap<>();
+    // The closest nodes found for recent keys, so that repeated writes and
+    // CAS go straight to them instead of starting with a lookup.
+    private final Map<String, List<String>> replicaSets = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > 1024;
+        }
+    });
+    private final LongAdder casAttempts = new LongAdder();
+    private final LongAdder casSucceeded = new LongAdder();
+    private final LongAdder casConflicts = new LongAdder();
+    private final LongAdder casUnavailable = new LongAdder();
+    private final LongAdder casRolledBack = new LongAdder();
+    // Round trip estimates per route, plus one over every route that new
+    // routes start from.
+    private final Map<String, RttEstimator> rtts = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, RttEstimator> eldest) {
+            return size() > 4096;
         }
     });
-    private final Random rng = new Random();
-    private String recentRead = null;
-    private boolean recentExistence = false;
+    private final RttEstimator allRoutes = new RttEstimator(RttEstimator.INITIAL_RTO_MS);
+    private final HashCache hashes = new HashCache(4096);
+    private final ValueCache remoteValues = new ValueCache(4096, 5000, 1000);
+    private final Metrics metrics = new Metrics();
+    private volatile ObjectName mbeanName;
     private final boolean debugLogs = false;
     private Thread backgroundListener;
+    private volatile Executor requestExecutor;
+    private volatile NetworkConditions networkConditions;
+    private volatile int writeQuorum = 2;
+    private volatile Path contactsFile;
+    private volatile boolean closed;
+
+    private static final int LOOKUP_PARALLELISM = 3;
+    private static final int LOOKUP_WIDTH = 3;
+    private static final int MAX_RETRANSMISSIONS = 2;
+    // Both bytes of a transaction ID are printable ASCII other than space.
+    private static final int TX_IDS = 94 * 94;
+    // How long a relayed request keeps its transaction ID here: as long as
+    // its sender might go on resending it.
+    private static final long RELAY_HOLD_MS = (1 + MAX_RETRANSMISSIONS) * RttEstimator.MAX_RTO_MS;
+    private static final int REPLICAS = 3;
+    // Bulk operations: lookups running side by side, and operations unfinished at once.
+    private static final int BULK_LOOKUPS = 16;
+    private static final int BULK_WINDOW = 256;
+    private static final long CONTACTS_SNAPSHOT_MS = 30_000;
+
+    private record RelayReturn(InetSocketAddress to, int tx) {}
+
+    private record Exchange(InetSocketAddress peer, int tx) {}
+
+    private record KeyHash(String key, HashKey hash) {}
 
     @Override
     public void setNodeName(String nodeName) {
         if (!nodeName.startsWith("N:")) throw new IllegalArgumentException("Invalid node name.");
         this.id = nodeName;
+        knownNodes.rebase(hashOf(nodeName));
     }
 
     @Override
     public void openPort(int port) throws Exception {
-        commSocket = new DatagramSocket(port);
+        transport = new Transport(port);
+        transport.conditions = networkConditions;
         if (debugLogs) System.out.println("Socket active on port " + port);
         initiateListener();
+        if (contactsFile != null) {
+            loadContacts();
+            scheduleContactsSnapshot();
+        }
+    }
+
+    // Keeps the routing table in file: call before openPort, which loads
+    // the contacts saved there and pings them all to see who is still up.
+    // The table is saved again every CONTACTS_SNAPSHOT_MS and on close.
+    public void setContactsFile(Path file) {
+        this.contactsFile = file;
+    }
+
+    // Replaces the default on-heap store, for instance with an OffHeapStore.
+    // Call before the node stores anything.
+    public void setStore(Store store) {
+        if (kvStore.log != null || kvStore.size() > 0) throw new IllegalStateException("Store already in use");
+        kvStore = store;
+    }
+
+    // Keeps the store in a log under dir, loading whatever it already
+    // holds. From then on W and C requests are only acknowledged once
+    // their change is on disk.
+    public void openStore(Path dir) throws IOException {
+        if (kvStore.log != null) throw new IllegalStateException("Store already open");
+        kvStore.log = SegmentLog.open(dir, kvStore::put, kvStore::forEach);
     }
 
     @Override
-    public void handleIncomingMessages(int timeout) throws Exception {
-        commSocket.setSoTimeout(100);
-        byte[] packetBuffer = new byte[2048];
-        long tStart = System.currentTimeMillis();
-        while (timeout == 0 || System.currentTimeMillis() - tStart < timeout) {
-            DatagramPacket datagram = new DatagramPacket(packetBuffer, packetBuffer.length);
+    public void close() throws IOException {
+        closed = true;
+        ObjectName name = mbeanName;
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ignored) {}
+        }
+        // The socket and the log are closed even if the contacts can't be saved.
+        try {
+            if (contactsFile != null && transport != null) saveContacts();
+        } finally {
             try {
-                commSocket.receive(datagram);
-                String received = new String(datagram.getData(), 0, datagram.getLength());
-                if (debugLogs) System.out.println("📩 " + received);
-                parseMessage(received, datagram.getAddress(), datagram.getPort());
-            } catch (SocketTimeoutException ignored) {}
+                if (transport != null) transport.close();
+            } finally {
+                SegmentLog log = kvStore.log;
+                if (log != null) log.close();
+            }
+        }
+    }
+
+    // The listener started by openPort is the only thread that reads the socket,
+    // so callers just give it time to work.
+    @Override
+    public void handleIncomingMessages(int timeout) throws Exception {
+        if (timeout == 0) backgroundListener.join();
+        else backgroundListener.join(timeout);
+    }
+
+    // Inline handling parses straight out of the transport's receive buffer.
+    // An executor gets its own copy, since that buffer is reused for the next packet.
+    private void received(ByteBuffer packet, InetSocketAddress from) {
+        if (debugLogs) System.out.println("📩 " + StandardCharsets.UTF_8.decode(packet.duplicate()));
+        Executor executor = requestExecutor;
+        if (executor == null) {
+            parseMessage(packet, from);
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining()).put(packet).flip();
+        try {
+            executor.execute(() -> parseMessage(copy, from));
+        } catch (RejectedExecutionException e) {
+            if (debugLogs) System.err.println("⚠️ Executor full, dropped message");
         }
     }
 
-    private void parseMessage(String msg, InetAddress addr, int port) {
+    // Package-private so NodeBenchmark can drive it without a socket in between.
+    void parseMessage(ByteBuffer packet, InetSocketAddress from) {
         try {
-            if (Math.random() < 0.1) return;
+            int start = packet.position();
+            MessageReader in = new MessageReader(packet);
+            int tx = in.txId();
+            char kind = in.type();
+            metrics.received(kind);
+            if (Reply.isReply(kind)) {
+                if (dispatchResponse(tx, kind, in, packet, start, from)) return;
+                metrics.unmatchedReplies.increment();
+            }
 
-            String[] tokens = msg.trim().split(" ", 3);
-            if (tokens.length < 2) return;
-            String tx = tokens[0], kind = tokens[1];
-            if (seenTransactions.contains(tx)) return;
-            seenTransactions.add(tx);
+            // A repeated W or C must not be applied twice, so it gets the
+            // answer the first one got. Everything else is safe to handle
+            // again, relays included: the next hop has its own cache.
+            // Transaction IDs come round again, so a repeat must also match
+            // the first request byte for byte.
+            Exchange exchange = new Exchange(from, tx);
+            long digest = 0;
+            if (kind == 'W' || kind == 'C') {
+                CRC32 crc = new CRC32();
+                crc.update(packet.duplicate().position(start + 2));
+                digest = crc.getValue();
+                ByteBuffer previous = responses.lookup(exchange, digest);
+                if (previous != null) {
+                    metrics.duplicateRequests.increment();
+                    if (previous.hasRemaining()) respond(from, previous.duplicate());
+                    return;
+                }
+            }
 
             switch (kind) {
-                case "G" -> respond(addr, port, tx + " H " + wrap(id));
-                case "H" -> {
-                    if (tokens.length > 2) {
-                        String incoming = unwrap(tokens[2]);
-                        if (incoming != null)
-                            knownNodes.put(incoming, new InetSocketAddress(addr, port));
-                    }
+                case 'G' -> respond(from, reply(tx, 'H').string(id));
+                case 'H' -> knownNodes.put(in.string(), from);
+                case 'W' -> {
+                    String key = in.string(), value = in.string();
+                    boolean replaced = kvStore.put(key, value);
+                    if (key.startsWith("N:")) learnAddress(key, value);
+                    long request = digest;
+                    whenDurable(() -> answer(exchange, request, reply(tx, 'X').status(replaced ? 'R' : 'A')));
                 }
-                case "W" -> {
-                    String[] kv = extractKeyValue(tokens.length > 2 ? tokens[2] : "");
-                    if (kv != null && kv[0] != null && kv[1] != null) {
-                        kvStore.put(kv[0], kv[1]);
-                        if (kv[0].startsWith("N:")) {
-                            try {
-                                String[] ipInfo = kv[1].split(":");
-                                if (ipInfo.length == 2)
-                                    knownNodes.put(kv[0], new InetSocketAddress(ipInfo[0], Integer.parseInt(ipInfo[1])));
-                            } catch (Exception ignored) {}
-                        }
-                        respond(addr, port, tx + " X A");
-                    }
-                }
-                case "R" -> {
-                    String query = unwrap(tokens.length > 2 ? tokens[2] : "");
-                    if (query != null) {
-                        String reply = kvStore.containsKey(query) ? kvStore.get(query) : null;
-                        respond(addr, port, tx + (reply != null ? " S Y " + wrap(reply) : " S N "));
-                    }
+                case 'C' -> {
+                    String key = in.string(), current = in.string(), replacement = in.string();
+                    char status = switch (kvStore.compareAndSet(key, current, replacement)) {
+                        case REPLACED -> 'R';
+                        case ADDED -> 'A';
+                        case CONFLICT -> 'N';
+                    };
+                    long request = digest;
+                    whenDurable(() -> answer(exchange, request, reply(tx, 'D').status(status)));
                 }
-                case "S" -> {
-                    if (tokens.length > 2) {
-                        String[] parts = tokens[2].split(" ", 2);
-                        if (parts[0].equals("Y") && parts.length > 1)
-                            recentRead = unwrap(parts[1]);
-                    }
+                case 'R' -> {
+                    String value = kvStore.get(in.string());
+                    respond(from, value != null ? reply(tx, 'S').status('Y').string(value) : reply(tx, 'S').status('N'));
                 }
-                case "E" -> {
-                    String k = unwrap(tokens.length > 2 ? tokens[2] : "");
-                    boolean exist = k != null && kvStore.containsKey(k);
-                    respond(addr, port, tx + " F " + (exist ? "Y" : "N"));
-                }
-                case "F" -> {
-                    if (tokens.length > 2 && tokens[2].trim().equals("Y")) recentExistence = true;
-                }
-                case "N" -> {
-                    if (tokens.length > 2) {
-                        String hash = tokens[2].trim();
-                        List<String> options = new ArrayList<>(knownNodes.keySet());
-                        options.removeIf(x -> !x.startsWith("N:"));
-                        options.sort(Comparator.comparingInt(n -> {
-                            try {
-                                return computeDistance(hash, hashify(n));
-                            } catch (Exception e) {
-                                return Integer.MAX_VALUE;
-                            }
-                        }));
-                        StringBuilder resp = new StringBuilder(tx + " O");
-                        for (int i = 0; i < Math.min(3, options.size()); i++) {
-                            String name = options.get(i);
-                            InetSocketAddress target = knownNodes.get(name);
-                            if (target != null) {
-                                String val = target.getAddress().getHostAddress() + ":" + target.getPort();
-                                resp.append(" ").append(wrap(name)).append(wrap(val));
-                            }
-                        }
-                        respond(addr, port, resp.toString());
+                case 'E' -> respond(from, reply(tx, 'F').status(kvStore.containsKey(in.string()) ? 'Y' : 'N'));
+                case 'N' -> {
+                    HashKey hash = in.hashKey();
+                    MessageWriter out = reply(tx, 'O');
+                    for (Contact contact : knownNodes.closest(hash, 3)) {
+                        InetSocketAddress target = contact.address();
+                        out.string(contact.name()).string(target.getAddress().getHostAddress() + ":" + target.getPort());
                     }
+                    respond(from, out);
                 }
-                case "O" -> {
-                    if (tokens.length > 2) nearestNodeResponses.put(tx, tokens[2]);
-                }
-                case "V" -> {
-                    if (tokens.length > 2) {
-                        String[] inner = tokens[2].split(" ", 2);
-                        if (inner.length == 2) {
-                            String next = unwrap(inner[0]);
-                            String payload = inner[1];
-                            if (next != null) {
-                                if (next.equals(id)) {
-                                    parseMessage(payload, addr, port);
-                                } else if (knownNodes.containsKey(next)) {
-                                    InetSocketAddress forwardTo = knownNodes.get(next);
-                                    String wrapped = "V " + wrap(next) + payload;
-                                    respond(forwardTo.getAddress(), forwardTo.getPort(), wrapped);
-                                }
-                            }
-                        }
+                case 'V' -> {
+                    String next = in.string();
+                    ByteBuffer payload = in.rest();
+                    if (next.equals(id)) {
+                        parseMessage(payload, from);
+                    } else if (knownNodes.containsKey(next) && payload.remaining() >= 2) {
+                        relay(new Exchange(from, tx), next, knownNodes.get(next), payload);
                     }
                 }
-                case "I" -> {
+                case 'I' -> {
                     // Optional heartbeat or hello
                 }
             }
@@ -241,36 +371,296 @@ public class Node implements NodeInterface {
         }
     }
 
-    private void respond(InetAddress addr, int port, String msg) {
+    // Passes on the message inside a V byte for byte, except that it goes
+    // under a transaction ID of ours: the one inside was picked by its
+    // sender, and two senders relaying through us to the same node could
+    // pick the same. A repeat of a request still held goes under the same
+    // ID again, so the next hop's response cache knows it for a repeat.
+    private void relay(Exchange origin, String next, InetSocketAddress nextHop, ByteBuffer payload) {
+        Retransmission held = relayed.get(origin);
+        if (held != null && held.target.equals(nextHop) && held.packet.slice(2, held.packet.limit() - 2)
+                .equals(payload.slice(payload.position() + 2, payload.remaining() - 2))) {
+            respond(nextHop, held.packet.duplicate());
+            return;
+        }
+        Retransmission forwarded = new Retransmission(next, nextHop, new RelayReturn(origin.peer(), origin.tx()));
+        int tx = newTxn(forwarded);
+        if (tx < 0) return;
+        forwarded.packet = ByteBuffer.allocate(payload.remaining()).put(payload).flip();
+        forwarded.packet.put(0, (byte) (tx >> 8)).put(1, (byte) tx);
+        relayed.put(origin, forwarded);
+        CompletableFuture.delayedExecutor(RELAY_HOLD_MS, TimeUnit.MILLISECONDS, Runnable::run).execute(() -> {
+            relayed.remove(origin, forwarded);
+            pendingRequests.compareAndSet(txSlot(tx), forwarded, null);
+        });
+        respond(nextHop, forwarded.packet.duplicate());
+    }
+
+    // Hands a reply to whoever is waiting on its transaction: one of our own
+    // requests, or a request we relayed, in which case the same bytes go back
+    // down the chain with the sender's transaction ID written over the front.
+    private boolean dispatchResponse(int tx, char kind, MessageReader in, ByteBuffer packet, int start,
+                                     InetSocketAddress from) {
+        int slot = txSlot(tx);
+        Retransmission pending = slot < 0 ? null : pendingRequests.get(slot);
+        // Only the node we asked can answer; anything else with the same ID
+        // is a reply to some other sender's request that we relayed.
+        if (pending != null && pending.target.equals(from) && pending.back != null) {
+            packet.put(start, (byte) (pending.back.tx() >> 8)).put(start + 1, (byte) pending.back.tx());
+            respond(pending.back.to(), packet.position(start));
+            return true;
+        }
+        if (pending != null && pending.target.equals(from)) {
+            Reply reply = Reply.read(kind, in);
+            if (kind == 'H' && !reply.strings().isEmpty()) knownNodes.put(reply.strings().get(0), from);
+            else knownNodes.seen(pending.peer);
+            pending.reply.complete(reply);
+            return true;
+        }
+        return false;
+    }
+
+    // Sends a request to a known node, through the relay stack if there is one.
+    // body writes whatever follows the request type. The future completes with
+    // the decoded reply, or fails once the request has been sent
+    // 1 + MAX_RETRANSMISSIONS times without one.
+    private CompletableFuture<Reply> sendRequest(String nodeName, char kind, Consumer<MessageWriter> body) {
+        RelayHeader relay = relayHeader;
+        String first = relay == null ? nodeName : relay.first;
+        InetSocketAddress target = knownNodes.get(first);
+        if (target == null)
+            return CompletableFuture.failedFuture(new NoRouteToHostException("Unknown node " + first));
+
+        String route = relay == null ? nodeName : relay.routeTo(nodeName);
+        RttEstimator rtt = rtts.computeIfAbsent(route, r -> new RttEstimator(allRoutes.timeoutMillis()));
+        Retransmission request = new Retransmission(first, target, rtt);
+        int tx = newTxn(request);
+        if (tx < 0) return CompletableFuture.failedFuture(new IllegalStateException("Too many requests in flight"));
+
+        MessageWriter out = transport.writer();
         try {
-            for (int i = relayPath.size() - 1; i >= 0; i--) {
-                msg = "V " + wrap(relayPath.get(i)) + msg;
+            if (relay != null) relay.write(out, tx, nodeName);
+            body.accept(out.begin(tx, kind));
+        } catch (BufferOverflowException e) {
+            // Too big for one datagram: free the ID and the writer rather
+            // than leave them waiting on a reply that can never come.
+            transport.discard(out);
+            pendingRequests.compareAndSet(txSlot(tx), request, null);
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("Request does not fit in " + Transport.MAX_DATAGRAM + " bytes"));
+        }
+        request.packet = transport.seal(out);
+        metrics.sent(kind);
+        long issued = System.nanoTime();
+        request.reply.whenComplete((r, e) -> {
+            pendingRequests.compareAndSet(txSlot(tx), request, null);
+            if (e == null) metrics.requestLatency(kind, System.nanoTime() - issued);
+            // Karn's rule: once resent, a reply can't be matched to a send.
+            if (e == null && request.attempt == 0) {
+                long sample = System.nanoTime() - request.sentAt;
+                rtt.sample(sample);
+                allRoutes.sample(sample);
+            }
+        });
+        request.run();
+        return request.reply;
+    }
+
+    // Sends the same packet, transaction ID and all, each time the route's
+    // retransmission timeout passes without a reply, doubling the wait
+    // each time up to MAX_RTO_MS, and fails the reply after
+    // MAX_RETRANSMISSIONS resends.
+    private final class Retransmission implements Runnable {
+        final CompletableFuture<Reply> reply = new CompletableFuture<>();
+        // The node at target: the first relay, if there are any.
+        final String peer;
+        final InetSocketAddress target;
+        final RttEstimator rtt;
+        // Where the reply goes, for a request we are relaying; null for our own.
+        final RelayReturn back;
+        ByteBuffer packet;
+        volatile int attempt = -1;
+        volatile long sentAt;
+
+        Retransmission(String peer, InetSocketAddress target, RttEstimator rtt) {
+            this(peer, target, rtt, null);
+        }
+
+        // Only holds a transaction ID for relay; it is never run.
+        Retransmission(String peer, InetSocketAddress target, RelayReturn back) {
+            this(peer, target, null, back);
+        }
+
+        private Retransmission(String peer, InetSocketAddress target, RttEstimator rtt, RelayReturn back) {
+            this.peer = peer;
+            this.target = target;
+            this.rtt = rtt;
+            this.back = back;
+        }
+
+        @Override
+        public void run() {
+            if (reply.isDone()) return;
+            if (attempt == MAX_RETRANSMISSIONS) {
+                metrics.timeouts.increment();
+                rtt.timedOut();
+                reply.completeExceptionally(new TimeoutException("No reply from " + target));
+                return;
             }
-            byte[] data = msg.getBytes();
-            DatagramPacket p = new DatagramPacket(data, data.length, addr, port);
-            commSocket.send(p);
-            if (debugLogs) System.out.println("📤 " + msg);
+            if (++attempt > 0) metrics.retransmissions.increment();
+            sentAt = System.nanoTime();
+            respond(target, packet.duplicate());
+            long wait = Math.min(RttEstimator.MAX_RTO_MS, rtt.timeoutMillis() << attempt);
+            CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS, Runnable::run).execute(this);
+        }
+    }
+
+    // Runs then once the store's changes so far are on disk, which is
+    // straight away when there is no log.
+    private void whenDurable(Runnable then) {
+        SegmentLog log = kvStore.log;
+        if (log == null) then.run();
+        else log.synced().thenRun(then);
+    }
+
+    private MessageWriter reply(int tx, char type) {
+        metrics.sent(type);
+        return transport.writer().begin(tx, type);
+    }
+
+    // Sends the reply to a W or C, keeping a copy for any repeats of the request.
+    private void answer(Exchange request, long digest, MessageWriter out) {
+        ByteBuffer packet = transport.seal(out);
+        responses.answered(request, digest, packet);
+        respond(request.peer(), packet.duplicate());
+    }
+
+    private void respond(InetSocketAddress to, MessageWriter out) {
+        if (debugLogs) System.out.println("📤 " + out);
+        try {
+            transport.send(to, out);
+        } catch (IOException ex) {
+            if (debugLogs) System.err.println("❌ Failed to send: " + ex.getMessage());
+        }
+    }
+
+    private void respond(InetSocketAddress to, ByteBuffer packet) {
+        try {
+            transport.send(to, packet);
         } catch (IOException ex) {
             if (debugLogs) System.err.println("❌ Failed to send: " + ex.getMessage());
         }
     }
 
-    private String wrap(String s) {
-        long blanks = s.chars().filter(c -> c == ' ').count();
-        return blanks + " " + s + " ";
+    // Address entries are stored as "ip:port". They come from other nodes,
+    // so they are only taken on trust until the node answers us itself.
+    private void learnAddress(String nodeName, String address) {
+        try {
+            int colon = address.lastIndexOf(':');
+            if (colon > 0)
+                knownNodes.learn(nodeName, new InetSocketAddress(address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1))));
+        } catch (Exception ignored) {}
     }
 
-    private String unwrap(String s) {
-        int space = s.indexOf(' ');
-        return (space != -1 && s.length() > space + 1) ? s.substring(space + 1, s.length() - 1) : null;
+    // One line per contact, least recently seen first:
+    //   <last seen, ms since the epoch> <retransmission timeout, ms> <ip:port> <name>
+    // Last seen is when the node last answered us, or 0 if it never has and
+    // we only heard of it from others. The name goes last since it may
+    // contain spaces. The file is replaced
+    // whole, so a crash mid-save leaves the previous one.
+    // Synchronized so that a snapshot and close() don't both write the
+    // temporary file at once.
+    private synchronized void saveContacts() throws IOException {
+        Path file = contactsFile;
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Contact contact : knownNodes.contacts()) {
+                RttEstimator rtt = rtts.get(contact.name());
+                long rto = rtt != null ? rtt.timeoutMillis() : 0;
+                InetSocketAddress address = contact.address();
+                out.write(contact.lastSeen() + " " + rto + " " + address.getHostString() + ":" + address.getPort()
+                        + " " + contact.name());
+                out.newLine();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    private String[] extractKeyValue(String input) {
+    // Contacts are usable straight away, so lookups can start before the
+    // pings are answered. They go back in the order they were seen, and
+    // those never seen go in as second-hand. A contact that answers as
+    // itself is marked seen now, one that answers as another node is
+    // replaced by it, and one that does not answer is dropped.
+    private void loadContacts() throws IOException {
+        List<String> lines;
         try {
-            String[] arr = input.trim().split(" ", 4);
-            if (arr.length == 4) return new String[]{arr[1], arr[3]};
-        } catch (Exception ignored) {}
-        return null;
+            lines = Files.readAllLines(contactsFile, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        List<Map.Entry<String, InetSocketAddress>> loaded = new ArrayList<>();
+        for (String line : lines) {
+            String[] fields = line.split(" ", 4);
+            if (fields.length < 4 || fields[3].equals(id)) continue;
+            try {
+                int colon = fields[2].lastIndexOf(':');
+                InetSocketAddress address = new InetSocketAddress(fields[2].substring(0, colon),
+                        Integer.parseInt(fields[2].substring(colon + 1)));
+                long lastSeen = Long.parseLong(fields[0]), rto = Long.parseLong(fields[1]);
+                if (lastSeen > 0) knownNodes.put(fields[3], address, lastSeen);
+                else knownNodes.learn(fields[3], address);
+                if (rto > 0) rtts.putIfAbsent(fields[3], new RttEstimator(rto));
+                loaded.add(Map.entry(fields[3], address));
+            } catch (RuntimeException ignored) {
+                // A damaged line costs that one contact.
+            }
+        }
+        // The H reply itself puts whoever answered into the table.
+        pipeline(loaded, contact -> sendRequest(contact.getKey(), 'G', out -> {}).whenComplete((reply, e) -> {
+            String name = e == null && !reply.strings().isEmpty() ? reply.strings().get(0) : null;
+            if (!contact.getKey().equals(name)) knownNodes.remove(contact.getKey());
+        }));
+    }
+
+    private void scheduleContactsSnapshot() {
+        CompletableFuture.delayedExecutor(CONTACTS_SNAPSHOT_MS, TimeUnit.MILLISECONDS).execute(() -> {
+            try {
+                // Checked under saveContacts' lock, so no snapshot follows close()'s save.
+                synchronized (this) {
+                    if (closed) return;
+                    saveContacts();
+                }
+            } catch (IOException e) {
+                if (debugLogs) System.err.println("⚠️ Could not save contacts: " + e.getMessage());
+            }
+            scheduleContactsSnapshot();
+        });
+    }
+
+    // How many of the REPLICAS closest nodes must acknowledge a write before
+    // it counts as done. Fewer are needed only when fewer nodes are known.
+    public void setWriteQuorum(int quorum) {
+        if (quorum < 1 || quorum > REPLICAS)
+            throw new IllegalArgumentException("Write quorum must be between 1 and " + REPLICAS);
+        this.writeQuorum = quorum;
+    }
+
+    // Puts simulated loss, duplication, reordering or delay on everything
+    // this node sends, for testing. Pass null for a perfect network, which
+    // is the default.
+    public void setNetworkConditions(NetworkConditions conditions) {
+        networkConditions = conditions;
+        if (transport != null) transport.conditions = conditions;
+    }
+
+    // Hands each incoming message to executor instead of handling it on the
+    // receive thread, so a slow request no longer holds up the rest.
+    // On JDK 21+ Executors.newVirtualThreadPerTaskExecutor() is a good fit;
+    // a bounded pool sheds load by rejecting, which looks like packet loss.
+    // Pass null to go back to handling messages inline.
+    public void setRequestExecutor(Executor executor) {
+        this.requestExecutor = executor;
     }
 
     @Override
@@ -280,140 +670,2203 @@ public class Node implements NodeInterface {
 
     @Override
     public void pushRelay(String nodeName) {
-        relayPath.push(nodeName);
+        synchronized (relayPath) {
+            relayPath.push(nodeName);
+            relayHeader = RelayHeader.of(relayPath);
+        }
     }
 
     @Override
     public void popRelay() {
-        if (!relayPath.isEmpty()) relayPath.pop();
+        synchronized (relayPath) {
+            if (!relayPath.isEmpty()) relayPath.pop();
+            relayHeader = relayPath.isEmpty() ? null : RelayHeader.of(relayPath);
+        }
     }
 
     @Override
     public boolean exists(String key) throws Exception {
-        return attemptLookup(key, true) != null;
+        return existsAsync(key).get();
     }
 
     @Override
     public String read(String key) throws Exception {
+        return readAsync(key).get();
+    }
+
+    @Override
+    public boolean write(String key, String val) throws Exception {
+        return writeAsync(key, val).get();
+    }
+
+    @Override
+    public boolean CAS(String key, String oldVal, String newVal) throws Exception {
+        return casAsync(key, oldVal, newVal).get();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsAsync(String key) {
+        return attemptLookup(key, true).thenApply(Objects::nonNull);
+    }
+
+    @Override
+    public CompletableFuture<String> readAsync(String key) {
         return attemptLookup(key, false);
     }
 
-    private String attemptLookup(String key, boolean checkExists) throws Exception {
-        if (kvStore.containsKey(key)) return kvStore.get(key);
+    public Map<String, String> readAll(Collection<String> keys) throws Exception {
+        return readAllAsync(keys).get();
+    }
 
-        String hash = hashify(key);
-        Set<String> queried = new HashSet<>();
-        Queue<String> queue = new LinkedList<>(knownNodes.keySet());
+    public Map<String, Boolean> writeAll(Map<String, String> entries) throws Exception {
+        return writeAllAsync(entries).get();
+    }
 
-        if (knownNodes.isEmpty()) {
-            knownNodes.put("N:azure", new InetSocketAddress("10.200.51.19", 20114));
-            queue.add("N:azure");
-        }
+    @Override
+    public CompletableFuture<Boolean> writeAsync(String key, String val) {
+        return closestNodes(key).thenCompose(targets -> writeTo(key, val, targets));
+    }
+
+    // Keys are looked up together, and then every key's requests go straight
+    // to its nodes, BULK_WINDOW keys at a time.
+    @Override
+    public CompletableFuture<Map<String, String>> readAllAsync(Collection<String> keys) {
+        Map<String, String> values = new ConcurrentHashMap<>();
+        return closestNodesForAll(keys).thenCompose(replicas -> pipeline(List.copyOf(replicas.keySet()), key ->
+                readFrom(key, replicas.get(key)).thenAccept(value -> {
+                    if (value != null) values.put(key, value);
+                }))).thenApply(done -> values);
+    }
 
-        while (!queue.isEmpty()) {
-            String candidate = queue.poll();
-            if (queried.contains(candidate) || !knownNodes.containsKey(candidate)) continue;
-            queried.add(candidate);
+    @Override
+    public CompletableFuture<Map<String, Boolean>> writeAllAsync(Map<String, String> entries) {
+        Map<String, Boolean> written = new ConcurrentHashMap<>();
+        return closestNodesForAll(entries.keySet()).thenCompose(replicas -> pipeline(List.copyOf(replicas.keySet()), key ->
+                writeTo(key, entries.get(key), replicas.get(key)).thenAccept(ok -> written.put(key, ok))))
+                .thenApply(done -> written);
+    }
 
-            InetSocketAddress target = knownNodes.get(candidate);
-            String txID = newTxn();
-            if (checkExists) {
-                recentExistence = false;
-                respond(target.getAddress(), target.getPort(), txID + " E " + wrap(key));
+    private CompletableFuture<Boolean> writeTo(String key, String val, List<String> targets) {
+        remoteValues.invalidate(key);
+        Quorum quorum = quorumFor(targets);
+        if (quorum.result.isDone()) return quorum.result;
+        for (String target : targets) {
+            if (target.equals(id)) {
+                kvStore.put(key, val);
+                whenDurable(quorum::ack);
             } else {
-                recentRead = null;
-                respond(target.getAddress(), target.getPort(), txID + " R " + wrap(key));
+                sendRequest(target, 'W', out -> out.string(key).string(val)).whenComplete((reply, e) -> {
+                    if (e != null) replicaSets.remove(key);
+                    quorum.vote(e == null && reply.type() == 'X');
+                });
             }
+        }
+        return quorum.result.whenComplete((done, e) -> remoteValues.invalidate(key));
+    }
 
-            long waitStart = System.currentTimeMillis();
-            while (System.currentTimeMillis() - waitStart < 1000) {
-                handleIncomingMessages(100);
-                if ((checkExists && recentExistence) || (!checkExists && recentRead != null)) {
-                    return checkExists ? "YES" : recentRead;
-                }
+    // Asks key's nodes in turn, nearest first. A full lookup is only needed
+    // if none of them answers.
+    private CompletableFuture<String> readFrom(String key, List<String> replicas) {
+        String local = kvStore.get(key);
+        if (local != null) return CompletableFuture.completedFuture(local);
+        ValueCache.Cached cached = remoteValues.get(key, true);
+        if (cached != null) return CompletableFuture.completedFuture(cached.present() ? cached.value() : null);
+        return readFrom(key, replicas, 0, false);
+    }
+
+    private CompletableFuture<String> readFrom(String key, List<String> replicas, int next, boolean answered) {
+        while (next < replicas.size() && replicas.get(next).equals(id)) next++;
+        if (next == replicas.size()) {
+            if (!answered) return attemptLookup(key, false);
+            remoteValues.put(key, null, false);
+            return CompletableFuture.completedFuture(null);
+        }
+        int after = next + 1;
+        return sendRequest(replicas.get(next), 'R', out -> out.string(key)).handle((reply, e) -> {
+            if (e == null && reply.type() == 'S' && reply.status() == 'Y' && !reply.strings().isEmpty()) {
+                String value = reply.strings().get(0);
+                remoteValues.put(key, value, true);
+                return CompletableFuture.completedFuture(value);
             }
+            return readFrom(key, replicas, after, answered || e == null);
+        }).thenCompose(value -> value);
+    }
 
-            String nTx = newTxn();
-            respond(target.getAddress(), target.getPort(), nTx + " N " + hash);
+    // The closest nodes for each of keys. Keys are taken in hash order, and
+    // one whose hash shares more leading bits with the last key looked up
+    // than that key's farthest node does has the same closest nodes, so
+    // it needs no lookup of its own. BULK_LOOKUPS slices of the ordering
+    // are worked through side by side.
+    private CompletableFuture<Map<String, List<String>>> closestNodesForAll(Collection<String> keys) {
+        // Each key is hashed once, here, rather than on every comparison.
+        List<KeyHash> sorted = keys.stream().distinct().map(key -> new KeyHash(key, HashKey.of(key)))
+                .sorted(Comparator.comparing(KeyHash::hash)).toList();
+        Map<String, List<String>> found = new ConcurrentHashMap<>();
+        int lanes = Math.min(BULK_LOOKUPS, sorted.size());
+        CompletableFuture<?>[] done = new CompletableFuture<?>[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            List<KeyHash> slice = sorted.subList(lane * sorted.size() / lanes, (lane + 1) * sorted.size() / lanes);
+            done[lane] = closestNodesForRun(slice, 0, found);
+        }
+        return CompletableFuture.allOf(done).thenApply(v -> found);
+    }
 
-            long wait2 = System.currentTimeMillis();
-            while (!nearestNodeResponses.containsKey(nTx) && System.currentTimeMillis() - wait2 < 1000) {
-                handleIncomingMessages(100);
+    private CompletableFuture<Void> closestNodesForRun(List<KeyHash> keys, int from, Map<String, List<String>> found) {
+        while (from < keys.size()) {
+            KeyHash leader = keys.get(from);
+            CompletableFuture<List<String>> lookup = closestNodes(leader.key(), leader.hash());
+            if (!lookup.isDone()) {
+                int at = from;
+                return lookup.thenCompose(replicas -> closestNodesForRun(keys, share(keys, at, replicas, found), found));
             }
+            from = share(keys, from, lookup.join(), found);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
 
-            String raw = nearestNodeResponses.get(nTx);
-            if (raw == null) continue;
+    // Gives the leader's nodes to it and to the keys after it close enough
+    // to share them, and returns where the next lookup starts. Sets short of
+    // REPLICAS mean the lookup came up short, so they are not shared.
+    private int share(List<KeyHash> keys, int leader, List<String> replicas, Map<String, List<String>> found) {
+        HashKey hash = keys.get(leader).hash();
+        found.put(keys.get(leader).key(), replicas);
+        int reach = -1;
+        if (replicas.size() == REPLICAS)
+            for (String node : replicas) reach = Math.max(reach, hash.distance(hashOf(node)));
+        int next = leader + 1;
+        while (next < keys.size() && hash.distance(keys.get(next).hash()) < reach) found.put(keys.get(next++).key(), replicas);
+        return next;
+    }
 
-            String[] lines = raw.trim().split(" ");
-            for (int i = 0; i + 3 < lines.length; i += 4) {
-                String nodeKey = lines[i + 1];
-                String address = lines[i + 3];
-                if (nodeKey.startsWith("N:") && address.contains(":")) {
-                    String[] info = address.split(":");
-                    InetSocketAddress peer = new InetSocketAddress(info[0], Integer.parseInt(info[1]));
-                    knownNodes.put(nodeKey, peer);
-                    if (!queried.contains(nodeKey)) queue.add(nodeKey);
+    // Runs task on every item with at most BULK_WINDOW unfinished at a time.
+    private static <T> CompletableFuture<Void> pipeline(List<T> items, Function<T, CompletableFuture<?>> task) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        AtomicInteger next = new AtomicInteger(), finished = new AtomicInteger();
+        Runnable[] worker = new Runnable[1];
+        worker[0] = () -> {
+            // Loops rather than recursing while tasks finish straight away.
+            for (int i; (i = next.getAndIncrement()) < items.size(); ) {
+                CompletableFuture<?> result = task.apply(items.get(i)).exceptionally(e -> null);
+                if (!result.isDone()) {
+                    result.whenComplete((r, e) -> {
+                        if (finished.incrementAndGet() == items.size()) done.complete(null);
+                        worker[0].run();
+                    });
+                    return;
                 }
+                if (finished.incrementAndGet() == items.size()) done.complete(null);
             }
-        }
-        return null;
+        };
+        if (items.isEmpty()) done.complete(null);
+        for (int w = 0; w < Math.min(BULK_WINDOW, items.size()); w++) worker[0].run();
+        return done;
     }
 
-    @Override
-    public boolean write(String key, String val) {
-        kvStore.put(key, val);
-        return true;
+    // The REPLICAS nodes closest to key, this one included, nearest first.
+    // Full sets are remembered until one of their nodes stops answering.
+    private CompletableFuture<List<String>> closestNodes(String key) {
+        return closestNodes(key, HashKey.of(key));
     }
 
+    private CompletableFuture<List<String>> closestNodes(String key, HashKey hash) {
+        List<String> cached = replicaSets.get(key);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        Lookup lookup = new Lookup(key, hash, 'N');
+        lookup.pump();
+        return lookup.closest.thenApply(found -> {
+            List<String> nodes = new ArrayList<>(found);
+            int self = hash.distance(hashOf(id));
+            int at = 0;
+            while (at < nodes.size() && hash.distance(hashOf(nodes.get(at))) < self) at++;
+            nodes.add(at, id);
+            List<String> replicas = List.copyOf(nodes.subList(0, Math.min(REPLICAS, nodes.size())));
+            if (replicas.size() == REPLICAS) replicaSets.put(key, replicas);
+            return replicas;
+        });
+    }
+
+    // A CAS is not atomic across the key's nodes, so some may swap while
+    // others refuse. Once every node has answered, a CAS that reached its
+    // quorum overwrites the nodes that held another value, and one that
+    // didn't swaps back the nodes that replaced oldVal. A node that added
+    // the key is left with newVal: CRN-25 has no way to remove a key. The
+    // result of a failed CAS waits for the undo to be sent, so a retry
+    // can't be overtaken by it.
     @Override
-    public boolean CAS(String key, String oldVal, String newVal) {
-        if (!kvStore.containsKey(key)) {
-            kvStore.put(key, newVal);
-            return true;
-        } else if (kvStore.get(key).equals(oldVal)) {
-            kvStore.put(key, newVal);
-            return true;
+    public CompletableFuture<Boolean> casAsync(String key, String oldVal, String newVal) {
+        casAttempts.increment();
+        remoteValues.invalidate(key);
+        return closestNodes(key).thenCompose(targets -> {
+            Quorum quorum = quorumFor(targets);
+            if (quorum.result.isDone()) {
+                casUnavailable.increment();
+                return quorum.result;
+            }
+            Map<String, CasResult> swapped = new ConcurrentHashMap<>();
+            Queue<String> refused = new ConcurrentLinkedQueue<>();
+            CompletableFuture<?>[] answers = new CompletableFuture<?>[targets.size()];
+            for (int i = 0; i < targets.size(); i++) {
+                String target = targets.get(i);
+                if (target.equals(id)) {
+                    CasResult result = kvStore.compareAndSet(key, oldVal, newVal);
+                    if (result == CasResult.CONFLICT) refused.add(id);
+                    else swapped.put(id, result);
+                    CompletableFuture<Void> durable = new CompletableFuture<>();
+                    whenDurable(() -> {
+                        quorum.vote(result != CasResult.CONFLICT);
+                        durable.complete(null);
+                    });
+                    answers[i] = durable;
+                } else {
+                    answers[i] = sendRequest(target, 'C', out -> out.string(key).string(oldVal).string(newVal))
+                            .whenComplete((reply, e) -> {
+                                boolean agreed = e == null && reply.type() == 'D'
+                                        && (reply.status() == 'R' || reply.status() == 'A');
+                                if (e != null) replicaSets.remove(key);
+                                else if (agreed) swapped.put(target, reply.status() == 'A' ? CasResult.ADDED : CasResult.REPLACED);
+                                else if (reply.status() == 'N') refused.add(target);
+                                quorum.vote(agreed);
+                            });
+                }
+            }
+            CompletableFuture<Void> answered = CompletableFuture.allOf(answers).exceptionally(e -> null);
+            return quorum.result.thenCompose(done -> {
+                remoteValues.invalidate(key);
+                if (done) {
+                    casSucceeded.increment();
+                    answered.thenRun(() -> {
+                        for (String node : refused) {
+                            if (node.equals(id)) kvStore.put(key, newVal);
+                            else sendRequest(node, 'W', out -> out.string(key).string(newVal));
+                        }
+                    });
+                    return CompletableFuture.completedFuture(true);
+                }
+                return answered.thenApply(all -> {
+                    if (swapped.isEmpty()) {
+                        if (refused.isEmpty()) casUnavailable.increment();
+                        else casConflicts.increment();
+                        return false;
+                    }
+                    casRolledBack.increment();
+                    swapped.forEach((node, result) -> {
+                        if (result != CasResult.REPLACED) return;
+                        if (node.equals(id)) kvStore.compareAndSet(key, newVal, oldVal);
+                        else sendRequest(node, 'C', out -> out.string(key).string(newVal).string(oldVal));
+                    });
+                    remoteValues.invalidate(key);
+                    return false;
+                });
+            });
+        });
+    }
+
+    public CasStats casStats() {
+        return new CasStats(casAttempts.sum(), casSucceeded.sum(), casConflicts.sum(), casUnavailable.sum(),
+                casRolledBack.sum());
+    }
+
+    public CacheStats cacheStats() {
+        return remoteValues.stats();
+    }
+
+    // Everything the node counts, as of now. Each call builds a fresh copy,
+    // so poll it rather than calling it per operation.
+    public MetricsSnapshot metrics() {
+        Map<String, Double> peerRtts = new TreeMap<>();
+        synchronized (rtts) {
+            rtts.forEach((route, rtt) -> {
+                double smoothed = rtt.smoothedMillis();
+                if (smoothed >= 0) peerRtts.put(route, smoothed);
+            });
         }
-        return false;
+        return new MetricsSnapshot(Metrics.byType(metrics.received), Metrics.byType(metrics.sent),
+                metrics.requestLatencies(), peerRtts, metrics.lookupQueries.summary(),
+                metrics.retransmissions.sum(), metrics.timeouts.sum(), metrics.duplicateRequests.sum(),
+                metrics.unmatchedReplies.sum(), kvStore.size(), knownNodes.size(), casStats(), cacheStats());
+    }
+
+    // Publishes metrics() on the platform MBean server as Node:name="<node name>",
+    // until close.
+    public ObjectName registerMBean() throws JMException {
+        ObjectName name = new ObjectName("Node", "name", ObjectName.quote(id));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(new MetricsBean(), NodeMXBean.class, true), name);
+        mbeanName = name;
+        return name;
     }
 
-    private String hashify(String s) throws Exception {
-        MessageDigest d = MessageDigest.getInstance("SHA-256");
-        byte[] bytes = d.digest(s.getBytes("UTF-8"));
-        StringBuilder out = new StringBuilder();
-        for (byte b : bytes) out.append(String.format("%02x", b));
-        return out.toString();
+    // Keys held here are answered straight away, and so are keys looked up
+    // recently, found or not; anything else costs a network lookup whose
+    // answer is then cached.
+    private CompletableFuture<String> attemptLookup(String key, boolean checkExists) {
+        String local = kvStore.get(key);
+        if (local != null) return CompletableFuture.completedFuture(local);
+        ValueCache.Cached cached = remoteValues.get(key, !checkExists);
+        if (cached != null) {
+            String answer = !cached.present() ? null : cached.value() != null ? cached.value() : "YES";
+            return CompletableFuture.completedFuture(answer);
+        }
+        if (knownNodes.isEmpty())
+            knownNodes.put("N:azure", new InetSocketAddress("10.200.51.19", 20114));
+        Lookup lookup = new Lookup(key, HashKey.of(key), checkExists ? 'E' : 'R');
+        lookup.pump();
+        return lookup.result.thenApply(value -> {
+            remoteValues.put(key, checkExists ? null : value, value != null);
+            return value;
+        });
     }
 
-    private int computeDistance(String a, String b) {
-        for (int i = 0; i < a.length(); i++) {
-            int d1 = Integer.parseInt(a.substring(i, i + 1), 16);
-            int d2 = Integer.parseInt(b.substring(i, i + 1), 16);
-            int diff = d1 ^ d2;
-            for (int bit = 3; bit >= 0; bit--) {
-                if (((diff >> bit) & 1) == 1) return i * 4 + (3 - bit);
+    // An iterative lookup driven by replies rather than by a waiting thread.
+    // Up to LOOKUP_PARALLELISM candidates are in flight at once, always the
+    // closest unqueried ones, and the lookup ends with null once every one of
+    // the closest LOOKUP_WIDTH candidates has answered or timed out.
+    // request is R or E to look for the key, or N just to find the nodes
+    // closest to it; either way closest ends up holding those that answered.
+    private final class Lookup {
+        final String key;
+        final HashKey hash;
+        final char request;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final CompletableFuture<List<String>> closest = new CompletableFuture<>();
+        final Map<String, Integer> distances = new HashMap<>();
+        final TreeSet<String> candidates = new TreeSet<>(Comparator.<String>comparingInt(distances::get)
+                .thenComparing(Comparator.naturalOrder()));
+        final Set<String> queried = new HashSet<>();
+        int inFlight = 0;
+
+        Lookup(String key, HashKey hash, char request) {
+            this.key = key;
+            this.hash = hash;
+            this.request = request;
+            for (Contact contact : knownNodes.closest(hash, RoutingTable.BUCKET_SIZE)) addCandidate(contact.name());
+            result.whenComplete((value, e) -> {
+                synchronized (this) {
+                    metrics.lookupQueries.record(queried.size());
+                }
+            });
+        }
+
+        private void addCandidate(String name) {
+            if (name.startsWith("N:") && !name.equals(id) && !distances.containsKey(name)) {
+                distances.put(name, hash.distance(hashOf(name)));
+                candidates.add(name);
             }
         }
-        return 256;
+
+        synchronized void pump() {
+            if (result.isDone()) return;
+            List<String> next = new ArrayList<>();
+            int rank = 0;
+            for (String candidate : candidates) {
+                if (rank++ >= LOOKUP_WIDTH || inFlight + next.size() >= LOOKUP_PARALLELISM) break;
+                if (!queried.contains(candidate)) next.add(candidate);
+            }
+            if (next.isEmpty() && inFlight == 0) {
+                result.complete(null);
+                closest.complete(candidates.stream().limit(LOOKUP_WIDTH).toList());
+                return;
+            }
+            // A request can fail straight away and re-enter pump(), so claim
+            // the whole batch before sending any of it.
+            queried.addAll(next);
+            inFlight += next.size();
+            for (String candidate : next) query(candidate);
+        }
+
+        private void query(String candidate) {
+            CompletableFuture<Reply> valueReply = request == 'N' ? CompletableFuture.completedFuture(null)
+                    : sendRequest(candidate, request, out -> out.string(key));
+            // Waiting on this stage rather than on valueReply itself makes sure
+            // a found value is in result before answered() can give up.
+            CompletableFuture<Void> valueSeen = valueReply.thenAccept(reply -> {
+                if (reply == null || reply.status() != 'Y') return;
+                if (reply.type() == 'F') result.complete("YES");
+                if (reply.type() == 'S' && !reply.strings().isEmpty()) result.complete(reply.strings().get(0));
+            });
+            CompletableFuture<Reply> nearestReply = sendRequest(candidate, 'N', out -> out.hash(hash));
+            CompletableFuture.allOf(valueSeen, nearestReply)
+                    .handle((r, e) -> null)
+                    .thenRun(() -> answered(candidate, nearestReply));
+        }
+
+        private synchronized void answered(String candidate, CompletableFuture<Reply> nearestReply) {
+            inFlight--;
+            if (nearestReply.isCompletedExceptionally() || nearestReply.join().type() != 'O') {
+                // Unresponsive nodes must not hold a place among the closest.
+                candidates.remove(candidate);
+            } else {
+                List<String> strings = nearestReply.join().strings();
+                for (int i = 0; i + 1 < strings.size(); i += 2) {
+                    String nodeKey = strings.get(i);
+                    if (nodeKey.startsWith("N:") && !nodeKey.equals(id)) {
+                        learnAddress(nodeKey, strings.get(i + 1));
+                        if (knownNodes.containsKey(nodeKey)) addCandidate(nodeKey);
+                    }
+                }
+            }
+            pump();
+        }
+    }
+
+    // The acks a write to targets needs. The quorum is lowered only when the
+    // whole network we know of has fewer than REPLICAS nodes, not because
+    // the lookup came back short: a write that can't reach writeQuorum of
+    // the key's nodes fails rather than quietly settling for fewer.
+    private Quorum quorumFor(List<String> targets) {
+        int nodes = Math.min(REPLICAS, knownNodes.size() + 1);
+        return new Quorum(Math.min(writeQuorum, nodes), targets.size());
+    }
+
+    // Counts answers from a set of nodes: result is true once needed of them
+    // have agreed, and false as soon as too many have refused or gone quiet
+    // for that still to happen.
+    private static final class Quorum {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private final int needed, asked;
+        private int yes, no;
+
+        Quorum(int needed, int asked) {
+            this.needed = needed;
+            this.asked = asked;
+            if (needed == 0) result.complete(true);
+            else if (asked < needed) result.complete(false);
+        }
+
+        void ack() {
+            vote(true);
+        }
+
+        synchronized void vote(boolean agreed) {
+            if (agreed) yes++;
+            else no++;
+            if (yes >= needed) result.complete(true);
+            else if (asked - no < needed) result.complete(false);
+        }
+    }
+
+    // The same node names are hashed over and over, so their hashes are
+    // kept. Keys are hashed once per operation and handed along, so caching
+    // them would save little and push the names out.
+    private HashKey hashOf(String s) {
+        return hashes.get(s);
+    }
+
+    // Hands out transaction IDs in sequence, skipping any still waiting on
+    // a reply, so no two requests in flight share one and a freed ID is not
+    // reused until every other has had its turn. -1 when all are in use.
+    private int newTxn(Retransmission request) {
+        for (int tries = 0; tries < TX_IDS; tries++) {
+            int slot = Math.floorMod(txSequence.getAndIncrement(), TX_IDS);
+            if (pendingRequests.compareAndSet(slot, null, request)) return ('!' + slot / 94) << 8 | ('!' + slot % 94);
+        }
+        return -1;
     }
 
-    private String newTxn() {
-        return "" + (char) ('A' + rng.nextInt(26)) + (char) ('A' + rng.nextInt(26));
+    // Where a transaction ID sits in pendingRequests, or -1 if it isn't one of ours.
+    private static int txSlot(int tx) {
+        int hi = (tx >> 8) - '!', lo = (tx & 0xff) - '!';
+        return hi >= 0 && hi < 94 && lo >= 0 && lo < 94 ? hi * 94 + lo : -1;
     }
 
     public Set<String> getKnownNodeNames() {
-        return knownNodes.keySet();
+        return knownNodes.names();
     }
 
     private void initiateListener() {
-        backgroundListener = new Thread(() -> {
-            try {
-                while (true) handleIncomingMessages(0);
-            } catch (Exception e) {
-                if (debugLogs) System.err.println("🧵 Listener crash: " + e.getMessage());
-            }
-        });
+        backgroundListener = new Thread(() -> transport.receiveLoop(this::received));
         backgroundListener.setDaemon(true);
         backgroundListener.start();
     }
+
+    enum CasResult { REPLACED, ADDED, CONFLICT }
+
+    // A relay path encoded once, when it changes, rather than on every send.
+    // The request goes to first. Each relay is told the name of the next
+    // hop; the last one is told the target, unless the target is that relay
+    // itself. bytes holds the V wrappers naming the hops after first, with
+    // room for the transaction ID at each offset in txAt.
+    static final class RelayHeader {
+        final String first, last, route;
+        private final byte[] bytes;
+        private final int[] txAt;
+
+        private RelayHeader(List<String> path, byte[] bytes, int[] txAt) {
+            this.first = path.get(0);
+            this.last = path.get(path.size() - 1);
+            this.route = String.join(">", path);
+            this.bytes = bytes;
+            this.txAt = txAt;
+        }
+
+        static RelayHeader of(List<String> path) {
+            int size = 0;
+            for (String hop : path) size += 24 + 3 * hop.length();
+            MessageWriter out = new MessageWriter(ByteBuffer.allocate(size));
+            int[] txAt = new int[path.size() - 1];
+            for (int i = 1; i < path.size(); i++) {
+                txAt[i - 1] = out.buffer.position();
+                out.begin(0, 'V').string(path.get(i));
+            }
+            return new RelayHeader(path, Arrays.copyOf(out.buffer.array(), out.buffer.position()), txAt);
+        }
+
+        // The route a request to target takes, for its RTT estimate.
+        String routeTo(String target) {
+            return last.equals(target) ? route : route + ">" + target;
+        }
+
+        void write(MessageWriter out, int tx, String target) {
+            int start = out.buffer.position();
+            out.buffer.put(bytes);
+            for (int at : txAt) out.buffer.put(start + at, (byte) (tx >> 8)).put(start + at + 1, (byte) tx);
+            if (!last.equals(target)) out.begin(tx, 'V').string(target);
+        }
+    }
+
+    // Outcomes of this node's CAS calls: conflicts are those refused because
+    // the current value did not match, unavailable those where too few of
+    // the key's nodes answered, and rolledBack those that some nodes
+    // applied but too few to succeed, which were then swapped back.
+    public record CasStats(long attempts, long succeeded, long conflicts, long unavailable, long rolledBack) {
+        public double conflictRate() {
+            return attempts == 0 ? 0 : conflicts / (double) attempts;
+        }
+    }
+
+    // Messages received and sent by type letter, the time from sending each
+    // kind of request to its reply in microseconds, the smoothed round trip
+    // per route (a relayed route is its hops joined by '>'), and how many
+    // nodes each lookup asked. Duplicate requests are repeated W and C
+    // answered from the reply cache; unmatched replies are ones nobody was
+    // waiting for, mostly answers to requests already retransmitted.
+    public record MetricsSnapshot(Map<Character, Long> received, Map<Character, Long> sent,
+                                  Map<Character, Distribution> requestMicros, Map<String, Double> peerRttMillis,
+                                  Distribution lookupQueries, long retransmissions, long timeouts,
+                                  long duplicateRequests, long unmatchedReplies, int storeSize, int contacts,
+                                  CasStats cas, CacheStats cache) {}
+
+    // Percentiles are the top of the power-of-two bucket they fall in.
+    public record Distribution(long count, double mean, long p50, long p99, long max) {}
+
+    // The attributes of the MBean registerMBean publishes.
+    public interface NodeMXBean {
+        Map<String, Long> getReceived();
+        Map<String, Long> getSent();
+        Map<String, Long> getRequestP50Micros();
+        Map<String, Long> getRequestP99Micros();
+        Map<String, Double> getPeerRttMillis();
+        double getMeanLookupQueries();
+        long getRetransmissions();
+        long getTimeouts();
+        long getDuplicateRequests();
+        long getUnmatchedReplies();
+        int getStoreSize();
+        int getContacts();
+        long getCasAttempts();
+        long getCasConflicts();
+        long getCasRolledBack();
+        long getCacheHits();
+        long getCacheMisses();
+    }
+
+    private final class MetricsBean implements NodeMXBean {
+        private static <V> Map<String, V> named(Map<Character, V> byType) {
+            Map<String, V> named = new TreeMap<>();
+            byType.forEach((type, value) -> named.put(String.valueOf(type), value));
+            return named;
+        }
+
+        private Map<String, Long> requestPercentile(boolean p99) {
+            Map<String, Long> micros = new TreeMap<>();
+            metrics.requestLatencies().forEach((type, d) -> micros.put(String.valueOf(type), p99 ? d.p99() : d.p50()));
+            return micros;
+        }
+
+        @Override
+        public Map<String, Long> getReceived() {
+            return named(Metrics.byType(metrics.received));
+        }
+
+        @Override
+        public Map<String, Long> getSent() {
+            return named(Metrics.byType(metrics.sent));
+        }
+
+        @Override
+        public Map<String, Long> getRequestP50Micros() {
+            return requestPercentile(false);
+        }
+
+        @Override
+        public Map<String, Long> getRequestP99Micros() {
+            return requestPercentile(true);
+        }
+
+        @Override
+        public Map<String, Double> getPeerRttMillis() {
+            return metrics().peerRttMillis();
+        }
+
+        @Override
+        public double getMeanLookupQueries() {
+            return metrics.lookupQueries.summary().mean();
+        }
+
+        @Override
+        public long getRetransmissions() {
+            return metrics.retransmissions.sum();
+        }
+
+        @Override
+        public long getTimeouts() {
+            return metrics.timeouts.sum();
+        }
+
+        @Override
+        public long getDuplicateRequests() {
+            return metrics.duplicateRequests.sum();
+        }
+
+        @Override
+        public long getUnmatchedReplies() {
+            return metrics.unmatchedReplies.sum();
+        }
+
+        @Override
+        public int getStoreSize() {
+            return kvStore.size();
+        }
+
+        @Override
+        public int getContacts() {
+            return knownNodes.size();
+        }
+
+        @Override
+        public long getCasAttempts() {
+            return casAttempts.sum();
+        }
+
+        @Override
+        public long getCasConflicts() {
+            return casConflicts.sum();
+        }
+
+        @Override
+        public long getCasRolledBack() {
+            return casRolledBack.sum();
+        }
+
+        @Override
+        public long getCacheHits() {
+            return cacheStats().hits();
+        }
+
+        @Override
+        public long getCacheMisses() {
+            return cacheStats().misses();
+        }
+    }
+
+    // Counters cheap enough for the message path: a LongAdder per type
+    // letter, so counting a message is one uncontended increment, and
+    // request latencies in histograms of power-of-two buckets.
+    static final class Metrics {
+        private static final String REQUESTS = "GWRENC";
+        final LongAdder[] received = adders(), sent = adders();
+        final Histogram[] requestLatency = new Histogram[26];
+        final Histogram lookupQueries = new Histogram();
+        final LongAdder retransmissions = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder duplicateRequests = new LongAdder();
+        final LongAdder unmatchedReplies = new LongAdder();
+
+        Metrics() {
+            for (char type : REQUESTS.toCharArray()) requestLatency[type - 'A'] = new Histogram();
+        }
+
+        private static LongAdder[] adders() {
+            LongAdder[] adders = new LongAdder[26];
+            for (int i = 0; i < adders.length; i++) adders[i] = new LongAdder();
+            return adders;
+        }
+
+        void received(char type) {
+            if (type >= 'A' && type <= 'Z') received[type - 'A'].increment();
+        }
+
+        void sent(char type) {
+            if (type >= 'A' && type <= 'Z') sent[type - 'A'].increment();
+        }
+
+        void requestLatency(char type, long nanos) {
+            Histogram histogram = type >= 'A' && type <= 'Z' ? requestLatency[type - 'A'] : null;
+            if (histogram != null) histogram.record(nanos / 1000);
+        }
+
+        Map<Character, Distribution> requestLatencies() {
+            Map<Character, Distribution> latencies = new TreeMap<>();
+            for (char type : REQUESTS.toCharArray()) {
+                Distribution d = requestLatency[type - 'A'].summary();
+                if (d.count() > 0) latencies.put(type, d);
+            }
+            return latencies;
+        }
+
+        // Types seen at least once.
+        static Map<Character, Long> byType(LongAdder[] adders) {
+            Map<Character, Long> counts = new TreeMap<>();
+            for (int i = 0; i < adders.length; i++) {
+                long n = adders[i].sum();
+                if (n > 0) counts.put((char) ('A' + i), n);
+            }
+            return counts;
+        }
+    }
+
+    // Bucket i counts values below 2^i and at least 2^(i-1).
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        Distribution summary() {
+            long n = count.sum(), top = max.get();
+            return new Distribution(n, n == 0 ? 0 : sum.sum() / (double) n,
+                    percentile(n, 0.5, top), percentile(n, 0.99, top), top);
+        }
+
+        private long percentile(long n, double p, long top) {
+            long rank = (long) Math.ceil(p * n), seen = 0;
+            for (int i = 0; i < 64 && n > 0; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(top, i == 0 ? 0 : (1L << i) - 1);
+            }
+            return top;
+        }
+    }
+
+    // A decoded reply. status is the letter after the type for S, F, X and D
+    // replies, and 0 otherwise; strings holds everything after that in order.
+    record Reply(char type, char status, List<String> strings) {
+        static boolean isReply(char type) {
+            return type == 'H' || type == 'S' || type == 'F' || type == 'O' || type == 'X' || type == 'D';
+        }
+
+        static Reply read(char type, MessageReader in) {
+            char status = type == 'S' || type == 'F' || type == 'X' || type == 'D' ? in.type() : 0;
+            List<String> strings = new ArrayList<>(2);
+            while (in.hasMore()) strings.add(in.string());
+            return new Reply(type, status, strings);
+        }
+    }
+
+    // Reads a CRN-25 message in place: a two byte transaction ID, a one
+    // letter type, then strings written as "<spaces> <text> ", where the
+    // count says how many spaces the text itself contains. Nothing is
+    // split or copied except the text of each string.
+    static final class MessageReader {
+        private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[Transport.MAX_DATAGRAM]);
+        private final ByteBuffer buffer;
+
+        MessageReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        static int txIdAt(ByteBuffer buffer, int index) {
+            return (buffer.get(index) & 0xff) << 8 | buffer.get(index + 1) & 0xff;
+        }
+
+        int txId() {
+            int tx = txIdAt(buffer, buffer.position());
+            buffer.position(buffer.position() + 2);
+            return tx;
+        }
+
+        // The next single letter, used for both the type and a reply's status.
+        char type() {
+            skipSpaces();
+            return (char) (buffer.get() & 0xff);
+        }
+
+        boolean hasMore() {
+            skipSpaces();
+            return buffer.hasRemaining();
+        }
+
+        String string() {
+            skipSpaces();
+            int spaces = 0, digits = 0;
+            byte b;
+            while ((b = buffer.get()) != ' ') {
+                if (b < '0' || b > '9' || ++digits > 5) throw new IllegalArgumentException("Bad string length");
+                spaces = spaces * 10 + (b - '0');
+            }
+            int start = buffer.position(), end = start, limit = buffer.limit();
+            // The text ends at the first space after its own spaces. A sender
+            // that trimmed the final space is let off at the end of the message.
+            while (end < limit && (buffer.get(end) != ' ' || spaces-- > 0)) end++;
+            if (end == limit && spaces > 0) throw new IllegalArgumentException("Truncated string");
+            buffer.position(Math.min(end + 1, limit));
+            return decode(start, end - start);
+        }
+
+        HashKey hashKey() {
+            skipSpaces();
+            return HashKey.readHex(buffer);
+        }
+
+        // Everything after what has been read, sharing this buffer's content.
+        ByteBuffer rest() {
+            return buffer.slice();
+        }
+
+        private void skipSpaces() {
+            while (buffer.hasRemaining() && buffer.get(buffer.position()) == ' ') buffer.get();
+        }
+
+        private String decode(int start, int length) {
+            if (buffer.hasArray())
+                return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+            byte[] scratch = SCRATCH.get();
+            buffer.get(start, scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Builds a CRN-25 message directly in a buffer. Strings are counted and
+    // UTF-8 encoded as they are written. Several messages can follow one
+    // another, which is how relay headers are stacked in front of a request.
+    static final class MessageWriter {
+        final ByteBuffer buffer;
+
+        MessageWriter(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        MessageWriter begin(int tx, char type) {
+            buffer.put((byte) (tx >> 8)).put((byte) tx).put((byte) ' ').put((byte) type);
+            return this;
+        }
+
+        MessageWriter status(char status) {
+            buffer.put((byte) ' ').put((byte) status);
+            return this;
+        }
+
+        MessageWriter string(String s) {
+            separate();
+            int spaces = 0;
+            for (int i = 0; i < s.length(); i++) if (s.charAt(i) == ' ') spaces++;
+            putDecimal(spaces);
+            buffer.put((byte) ' ');
+            putUtf8(buffer, s);
+            buffer.put((byte) ' ');
+            return this;
+        }
+
+        MessageWriter hash(HashKey hash) {
+            separate();
+            hash.putHex(buffer);
+            return this;
+        }
+
+        // Strings end in a space already; anything else needs one before the next field.
+        private void separate() {
+            int p = buffer.position();
+            if (p > 0 && buffer.get(p - 1) != ' ') buffer.put((byte) ' ');
+        }
+
+        private void putDecimal(int n) {
+            int div = 1;
+            while (n / div >= 10) div *= 10;
+            for (; div > 0; div /= 10) buffer.put((byte) ('0' + n / div % 10));
+        }
+
+        static void putUtf8(ByteBuffer buffer, String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buffer.put((byte) (0xf0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3f))
+                            .put((byte) (0x80 | cp >> 6 & 0x3f)).put((byte) (0x80 | cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    buffer.put((byte) '?');
+                } else {
+                    buffer.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f))
+                            .put((byte) (0x80 | c & 0x3f));
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return StandardCharsets.UTF_8.decode(buffer.duplicate().flip()).toString();
+        }
+    }
+
+    // UDP over a non-blocking DatagramChannel. One thread runs receiveLoop,
+    // which sleeps in the selector until datagrams arrive and drains them
+    // through a single direct buffer. Any thread may send; a message is
+    // encoded into a writer borrowed from a small pool of direct buffers,
+    // so neither direction allocates per packet.
+    static final class Transport implements Closeable {
+        static final int MAX_DATAGRAM = 65507;
+        private static final int POOLED_BUFFERS = 16;
+
+        interface Receiver {
+            void received(ByteBuffer packet, InetSocketAddress from);
+        }
+
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final Queue<MessageWriter> writers = new ConcurrentLinkedQueue<>();
+        volatile NetworkConditions conditions;
+
+        Transport(int port) throws IOException {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        void receiveLoop(Receiver receiver) {
+            ByteBuffer packet = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+            try {
+                while (channel.isOpen()) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    SocketAddress from;
+                    while ((from = channel.receive(packet)) != null) {
+                        packet.flip();
+                        receiver.received(packet, (InetSocketAddress) from);
+                        packet.clear();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // Closed underneath us; nothing more to receive.
+            }
+        }
+
+        // An empty writer; give it back by sending it or sealing it.
+        MessageWriter writer() {
+            MessageWriter writer = writers.poll();
+            return writer != null ? writer : new MessageWriter(ByteBuffer.allocateDirect(MAX_DATAGRAM));
+        }
+
+        // Copies out what writer holds as a packet that can be sent any
+        // number of times, and takes the writer back.
+        ByteBuffer seal(MessageWriter writer) {
+            ByteBuffer buffer = writer.buffer;
+            ByteBuffer packet = ByteBuffer.allocate(buffer.position()).put(buffer.flip()).flip();
+            buffer.clear();
+            if (writers.size() < POOLED_BUFFERS) writers.offer(writer);
+            return packet;
+        }
+
+        // Takes writer back unsent, whatever it holds.
+        void discard(MessageWriter writer) {
+            writer.buffer.clear();
+            if (writers.size() < POOLED_BUFFERS) writers.offer(writer);
+        }
+
+        void send(InetSocketAddress to, MessageWriter writer) throws IOException {
+            ByteBuffer buffer = writer.buffer;
+            try {
+                buffer.flip();
+                send(to, buffer);
+            } finally {
+                buffer.clear();
+                if (writers.size() < POOLED_BUFFERS) writers.offer(writer);
+            }
+        }
+
+        // A full socket buffer drops the datagram, as the network might.
+        void send(InetSocketAddress to, ByteBuffer packet) throws IOException {
+            NetworkConditions network = conditions;
+            if (network == null) channel.send(packet, to);
+            else network.send(to, packet, this);
+        }
+
+        // For packets the network conditions delayed, which have nobody left
+        // to report a failure to.
+        void sendLater(InetSocketAddress to, ByteBuffer packet, long millis) {
+            CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS, Runnable::run).execute(() -> {
+                try {
+                    channel.send(packet, to);
+                } catch (IOException ignored) {}
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            selector.close();
+        }
+    }
+
+    // Replies sent recently, by request, each kept for ttl and evicted least
+    // recently used first beyond capacity. lookup records a request the first
+    // time it sees it, so concurrent repeats find an empty reply until the
+    // real one is in.
+    static final class ResponseCache {
+        private static final ByteBuffer UNANSWERED = ByteBuffer.allocate(0);
+
+        // digest identifies the request's bytes after the transaction ID.
+        private record Entry(long digest, ByteBuffer response, long expires) {}
+
+        private final Map<Exchange, Entry> entries;
+        private final long ttlNanos;
+
+        ResponseCache(int capacity, long ttlMillis) {
+            entries = new LinkedHashMap<>(capacity, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Exchange, Entry> eldest) {
+                    return size() > capacity;
+                }
+            };
+            ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        }
+
+        // null the first time; the reply, possibly empty, for a repeat. A
+        // different request under the same transaction ID is not a repeat.
+        ByteBuffer lookup(Exchange request, long digest) {
+            long now = System.nanoTime();
+            synchronized (entries) {
+                Entry entry = entries.get(request);
+                if (entry != null && entry.digest() == digest && now - entry.expires() < 0) return entry.response();
+                entries.put(request, new Entry(digest, UNANSWERED, now + ttlNanos));
+                return null;
+            }
+        }
+
+        // Kept only if no newer request has taken the transaction ID since.
+        void answered(Exchange request, long digest, ByteBuffer response) {
+            synchronized (entries) {
+                Entry entry = entries.get(request);
+                if (entry == null || entry.digest() == digest)
+                    entries.put(request, new Entry(digest, response, System.nanoTime() + ttlNanos));
+            }
+        }
+    }
+
+    // Simulated trouble on the way out of a node: packets lost, sent twice,
+    // held back so that later ones overtake them, or delayed. Each packet
+    // takes its chances independently. Rules set for a particular peer
+    // replace these for packets sent to it. Setters return this so that
+    // a test can write new NetworkConditions().loss(0.1).delay(5, 2).
+    public static final class NetworkConditions {
+        private volatile double loss, duplication, reordering;
+        private volatile long delayMillis, jitterMillis, reorderMillis;
+        private final Map<InetSocketAddress, NetworkConditions> peers = new ConcurrentHashMap<>();
+
+        public NetworkConditions loss(double probability) {
+            loss = probability;
+            return this;
+        }
+
+        public NetworkConditions duplication(double probability) {
+            duplication = probability;
+            return this;
+        }
+
+        // A reordered packet is held back holdMillis on top of any delay.
+        public NetworkConditions reordering(double probability, long holdMillis) {
+            reordering = probability;
+            reorderMillis = holdMillis;
+            return this;
+        }
+
+        // Every packet waits millis plus up to jitterMillis more.
+        public NetworkConditions delay(long millis, long jitterMillis) {
+            delayMillis = millis;
+            this.jitterMillis = jitterMillis;
+            return this;
+        }
+
+        public NetworkConditions forPeer(InetSocketAddress peer, NetworkConditions rules) {
+            if (rules == null) peers.remove(peer);
+            else peers.put(peer, rules);
+            return this;
+        }
+
+        void send(InetSocketAddress to, ByteBuffer packet, Transport transport) throws IOException {
+            NetworkConditions rules = peers.getOrDefault(to, this);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < rules.loss) return;
+            int copies = random.nextDouble() < rules.duplication ? 2 : 1;
+            for (int i = 0; i < copies; i++) {
+                long wait = rules.delayMillis + (rules.jitterMillis > 0 ? random.nextLong(rules.jitterMillis + 1) : 0);
+                if (random.nextDouble() < rules.reordering) wait += rules.reorderMillis;
+                if (wait == 0) {
+                    transport.channel.send(packet.duplicate(), to);
+                } else {
+                    // The caller's buffer is reused as soon as we return.
+                    ByteBuffer copy = ByteBuffer.allocate(packet.remaining()).put(packet.duplicate()).flip();
+                    transport.sendLater(to, copy, wait);
+                }
+            }
+        }
+    }
+
+    // Smoothed round trip time and its variation for one route, kept the way
+    // TCP does (RFC 6298), giving a retransmission timeout a little above
+    // what replies usually take. A timeout doubles it until the next sample.
+    static final class RttEstimator {
+        static final long INITIAL_RTO_MS = 100;
+        static final long MIN_RTO_MS = 20;
+        static final long MAX_RTO_MS = 1000;
+
+        private double srtt, rttvar;
+        private boolean sampled;
+        private long rto;
+
+        RttEstimator(long initialRtoMillis) {
+            rto = initialRtoMillis;
+        }
+
+        synchronized void sample(long nanos) {
+            double r = nanos / 1e6;
+            if (!sampled) {
+                srtt = r;
+                rttvar = r / 2;
+                sampled = true;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - r);
+                srtt = 0.875 * srtt + 0.125 * r;
+            }
+            rto = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, (long) Math.ceil(srtt + 4 * rttvar)));
+        }
+
+        synchronized void timedOut() {
+            rto = Math.min(MAX_RTO_MS, rto * 2);
+        }
+
+        synchronized long timeoutMillis() {
+            return rto;
+        }
+
+        synchronized double smoothedMillis() {
+            return sampled ? srtt : -1;
+        }
+    }
+
+    // A bounded cache of hashIDs for strings that takes no lock to read.
+    // Once it is full, a clock hand sweeps round the entries, giving each
+    // one used since the hand last passed a second chance and evicting the
+    // first that has none: least recently used, roughly, without reordering
+    // anything on a hit.
+    static final class HashCache {
+        private static final class Slot {
+            final HashKey hash;
+            volatile boolean referenced;
+
+            Slot(HashKey hash) {
+                this.hash = hash;
+            }
+        }
+
+        private final Map<String, Slot> entries;
+        private final int capacity;
+        private Iterator<Slot> hand = Collections.emptyIterator();
+
+        HashCache(int capacity) {
+            this.entries = new ConcurrentHashMap<>(capacity * 2);
+            this.capacity = capacity;
+        }
+
+        HashKey get(String s) {
+            Slot slot = entries.get(s);
+            if (slot != null) {
+                // Read first, so hits on a hot entry don't keep writing it.
+                if (!slot.referenced) slot.referenced = true;
+                return slot.hash;
+            }
+            // Two threads racing on a miss just hash it twice.
+            HashKey hash = HashKey.of(s);
+            if (entries.size() >= capacity) evict();
+            entries.put(s, new Slot(hash));
+            return hash;
+        }
+
+        // Two turns of the hand clear every second chance, so after that the
+        // next entry goes regardless of hits in the meantime.
+        private synchronized void evict() {
+            for (int step = 0; entries.size() >= capacity; step++) {
+                if (!hand.hasNext()) hand = entries.values().iterator();
+                if (!hand.hasNext()) return;
+                Slot slot = hand.next();
+                if (slot.referenced && step < 2 * capacity) slot.referenced = false;
+                else hand.remove();
+            }
+        }
+    }
+
+    public record CacheStats(long hits, long misses, int size) {}
+
+    // Answers to recent R and E lookups, kept for ttl when the key was found
+    // and for negativeTtl when it was not, and evicted least recently used
+    // first beyond capacity. value is null when only existence is known.
+    static final class ValueCache {
+        record Cached(String value, boolean present, long expires) {}
+
+        private final Map<String, Cached> entries;
+        private final long ttlNanos, negativeTtlNanos;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        ValueCache(int capacity, long ttlMillis, long negativeTtlMillis) {
+            entries = new LinkedHashMap<>(capacity, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                    return size() > capacity;
+                }
+            };
+            ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+            negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        }
+
+        // A live entry that answers the question, or null. Reads need the
+        // value itself, so knowing only that the key exists is not enough.
+        Cached get(String key, boolean needValue) {
+            Cached cached;
+            synchronized (entries) {
+                cached = entries.get(key);
+                if (cached != null && System.nanoTime() - cached.expires() > 0) {
+                    entries.remove(key);
+                    cached = null;
+                }
+            }
+            if (cached == null || (needValue && cached.present() && cached.value() == null)) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return cached;
+        }
+
+        void put(String key, String value, boolean present) {
+            long expires = System.nanoTime() + (present ? ttlNanos : negativeTtlNanos);
+            synchronized (entries) {
+                Cached known = entries.get(key);
+                // An existence check says nothing new about a value we already have.
+                if (present && value == null && known != null && known.value() != null) return;
+                entries.put(key, new Cached(value, present, expires));
+            }
+        }
+
+        void invalidate(String key) {
+            synchronized (entries) {
+                entries.remove(key);
+            }
+        }
+
+        CacheStats stats() {
+            synchronized (entries) {
+                return new CacheStats(hits.sum(), misses.sum(), entries.size());
+            }
+        }
+    }
+
+    record Contact(String name, HashKey hash, InetSocketAddress address, long lastSeen) {}
+
+    // Known node addresses, grouped into buckets by how many leading bits the
+    // node's hashID shares with ours. Each bucket holds at most BUCKET_SIZE
+    // contacts, least recently heard from first. A node we hear from
+    // directly goes to the end of its bucket, and if that overfills the
+    // bucket, the contact at the front is moved out to a bounded overflow
+    // list. A node we only hear about from others goes to the front, or
+    // straight to overflow if its bucket is full, so it never pushes out a
+    // node that has answered us; its lastSeen stays 0 until it answers too.
+    // Overflow contacts are never offered by closest(), but they can still
+    // be reached, so a node a lookup has just named stays reachable while a
+    // busy bucket churns.
+    //
+    // For a target that shares p bits with us, every node in bucket p is
+    // closer to it than any node elsewhere. Nodes in deeper buckets all
+    // share exactly p bits with the target. Nodes in shallower buckets
+    // share fewer, the shallower the further. So closest() only sorts one
+    // bucket and then walks outwards.
+    private final class RoutingTable {
+        static final int BUCKET_SIZE = 8;
+        static final int OVERFLOW_SIZE = 4096;
+
+        private final Map<String, Contact> byName = new ConcurrentHashMap<>();
+        private final Map<String, Contact> overflow = new LinkedHashMap<>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Contact> eldest) {
+                return size() > OVERFLOW_SIZE;
+            }
+        };
+        private final List<LinkedHashMap<String, Contact>> buckets = new ArrayList<>(257);
+        private HashKey self = new HashKey(0, 0, 0, 0);
+
+        RoutingTable() {
+            for (int i = 0; i <= 256; i++) buckets.add(new LinkedHashMap<>());
+        }
+
+        private int bucketOf(HashKey hash) {
+            return 256 - self.distance(hash);
+        }
+
+        // Re-sorts every contact once our own hashID is known.
+        synchronized void rebase(HashKey newSelf) {
+            self = newSelf;
+            for (LinkedHashMap<String, Contact> bucket : buckets) bucket.clear();
+            List<Contact> all = new ArrayList<>(byName.values());
+            byName.clear();
+            all.sort(Comparator.comparingLong(Contact::lastSeen));
+            for (Contact contact : all) put(contact.name(), contact.address(), contact.lastSeen());
+        }
+
+        void put(String name, InetSocketAddress address) {
+            put(name, address, System.currentTimeMillis());
+        }
+
+        // A known node has just answered us.
+        synchronized void seen(String name) {
+            Contact contact = byName.get(name);
+            if (contact == null) contact = overflow.get(name);
+            if (contact != null) put(name, contact.address());
+        }
+
+        // A node someone else told us about. One we know already stays as it is.
+        synchronized void learn(String name, InetSocketAddress address) {
+            if (!name.startsWith("N:") || byName.containsKey(name) || overflow.containsKey(name)) return;
+            Contact contact = new Contact(name, hashOf(name), address, 0);
+            int b = bucketOf(contact.hash());
+            LinkedHashMap<String, Contact> bucket = buckets.get(b);
+            if (bucket.size() >= BUCKET_SIZE) {
+                overflow.put(name, contact);
+                return;
+            }
+            LinkedHashMap<String, Contact> reordered = new LinkedHashMap<>();
+            reordered.put(name, contact);
+            reordered.putAll(bucket);
+            buckets.set(b, reordered);
+            byName.put(name, contact);
+        }
+
+        // Only node names are kept; anything else is ignored. Within a
+        // bucket, the contact put last counts as the most recently seen.
+        synchronized void put(String name, InetSocketAddress address, long lastSeen) {
+            if (!name.startsWith("N:")) return;
+            Contact contact = new Contact(name, hashOf(name), address, lastSeen);
+            LinkedHashMap<String, Contact> bucket = buckets.get(bucketOf(contact.hash()));
+            bucket.remove(name);
+            bucket.put(name, contact);
+            byName.put(name, contact);
+            overflow.remove(name);
+            if (bucket.size() > BUCKET_SIZE) {
+                String stale = bucket.keySet().iterator().next();
+                overflow.put(stale, bucket.remove(stale));
+                byName.remove(stale);
+            }
+        }
+
+        synchronized void remove(String name) {
+            Contact contact = byName.remove(name);
+            if (contact != null) buckets.get(bucketOf(contact.hash())).remove(name);
+            overflow.remove(name);
+        }
+
+        InetSocketAddress get(String name) {
+            Contact contact = byName.get(name);
+            if (contact == null) {
+                synchronized (this) {
+                    contact = overflow.get(name);
+                }
+            }
+            return contact == null ? null : contact.address();
+        }
+
+        boolean containsKey(String name) {
+            return get(name) != null;
+        }
+
+        boolean isEmpty() {
+            return byName.isEmpty();
+        }
+
+        int size() {
+            return byName.size();
+        }
+
+        Set<String> names() {
+            return Collections.unmodifiableSet(byName.keySet());
+        }
+
+        // Everyone, overflow included, least recently seen first.
+        synchronized List<Contact> contacts() {
+            List<Contact> all = new ArrayList<>(overflow.values());
+            all.addAll(byName.values());
+            all.sort(Comparator.comparingLong(Contact::lastSeen));
+            return all;
+        }
+
+        synchronized List<Contact> closest(HashKey target, int k) {
+            List<Contact> result = new ArrayList<>(k);
+            int shared = bucketOf(target);
+            List<Contact> nearest = new ArrayList<>(buckets.get(shared).values());
+            nearest.sort(Comparator.comparingInt(c -> target.distance(c.hash())));
+            for (Contact contact : nearest) {
+                if (result.size() == k) return result;
+                result.add(contact);
+            }
+            for (int b = shared + 1; b <= 256 && result.size() < k; b++) addFrom(buckets.get(b), result, k);
+            for (int b = shared - 1; b >= 0 && result.size() < k; b--) addFrom(buckets.get(b), result, k);
+            return result;
+        }
+
+        private void addFrom(LinkedHashMap<String, Contact> bucket, List<Contact> result, int k) {
+            for (Contact contact : bucket.values()) {
+                if (result.size() == k) return;
+                result.add(contact);
+            }
+        }
+    }
+
+    // A 256-bit hashID held as four longs, most significant first, so that
+    // comparing two IDs needs no strings and no allocation.
+    record HashKey(long w0, long w1, long w2, long w3) implements Comparable<HashKey> {
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        static HashKey of(String s) {
+            try {
+                return fromBytes(HashID.computeHashID(s));
+            } catch (Exception e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        static HashKey fromBytes(byte[] hash) {
+            ByteBuffer b = ByteBuffer.wrap(hash);
+            return new HashKey(b.getLong(), b.getLong(), b.getLong(), b.getLong());
+        }
+
+        // Reads 64 hex digits from the buffer's position.
+        static HashKey readHex(ByteBuffer buffer) {
+            long[] words = new long[4];
+            for (int i = 0; i < 64; i++) {
+                int digit = Character.digit(buffer.get(), 16);
+                if (digit < 0) throw new IllegalArgumentException("hashID must be 64 hex digits");
+                words[i >> 4] = words[i >> 4] << 4 | digit;
+            }
+            return new HashKey(words[0], words[1], words[2], words[3]);
+        }
+
+        // CRN distance: 256 minus the number of leading bits the two hashes share.
+        int distance(HashKey o) {
+            long x;
+            if ((x = w0 ^ o.w0) != 0) return 256 - Long.numberOfLeadingZeros(x);
+            if ((x = w1 ^ o.w1) != 0) return 192 - Long.numberOfLeadingZeros(x);
+            if ((x = w2 ^ o.w2) != 0) return 128 - Long.numberOfLeadingZeros(x);
+            if ((x = w3 ^ o.w3) != 0) return 64 - Long.numberOfLeadingZeros(x);
+            return 0;
+        }
+
+        // Numeric order, in which hashes sharing longer prefixes sit closer together.
+        @Override
+        public int compareTo(HashKey o) {
+            int c = Long.compareUnsigned(w0, o.w0);
+            if (c == 0) c = Long.compareUnsigned(w1, o.w1);
+            if (c == 0) c = Long.compareUnsigned(w2, o.w2);
+            if (c == 0) c = Long.compareUnsigned(w3, o.w3);
+            return c;
+        }
+
+        void putHex(ByteBuffer buffer) {
+            long[] words = {w0, w1, w2, w3};
+            for (int i = 0; i < 64; i++) {
+                buffer.put(HEX[(int) (words[i >> 4] >>> (60 - 4 * (i & 15))) & 0xf]);
+            }
+        }
+    }
+
+    // Where a node keeps its key/value pairs; see setStore. Every operation
+    // on a key, including compare-and-set, is atomic. Changes are appended
+    // to log, when there is one, under the same lock as the change itself,
+    // so the log holds each key's changes in the order they were made.
+    public abstract static class Store {
+        volatile SegmentLog log;
+
+        abstract String get(String key);
+
+        boolean containsKey(String key) {
+            return get(key) != null;
+        }
+
+        // Returns whether key already had a value.
+        abstract boolean put(String key, String value);
+
+        // Sets key to newValue if it holds expected. A missing key is added,
+        // as the CRN-25 compare-and-swap request does.
+        abstract CasResult compareAndSet(String key, String expected, String newValue);
+
+        abstract void forEach(BiConsumer<String, String> action);
+
+        abstract int size();
+
+        final void record(String key, String value) {
+            SegmentLog journal = log;
+            if (journal == null) return;
+            try {
+                journal.append(key, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Pairs in HashMaps, split across lock stripes so threads working on
+    // different keys rarely wait for each other. This is the default.
+    public static final class StripedStore extends Store {
+        private static final int STRIPES = 64;
+        private final List<Map<String, String>> stripes = new ArrayList<>(STRIPES);
+
+        public StripedStore() {
+            for (int i = 0; i < STRIPES; i++) stripes.add(new HashMap<>());
+        }
+
+        private Map<String, String> stripe(String key) {
+            int h = key.hashCode();
+            return stripes.get((h ^ (h >>> 16)) & (STRIPES - 1));
+        }
+
+        @Override
+        String get(String key) {
+            Map<String, String> stripe = stripe(key);
+            synchronized (stripe) {
+                return stripe.get(key);
+            }
+        }
+
+        @Override
+        boolean put(String key, String value) {
+            Map<String, String> stripe = stripe(key);
+            synchronized (stripe) {
+                boolean existed = stripe.put(key, value) != null;
+                record(key, value);
+                return existed;
+            }
+        }
+
+        @Override
+        CasResult compareAndSet(String key, String expected, String newValue) {
+            Map<String, String> stripe = stripe(key);
+            synchronized (stripe) {
+                String current = stripe.get(key);
+                if (current != null && !current.equals(expected)) return CasResult.CONFLICT;
+                stripe.put(key, newValue);
+                record(key, newValue);
+                return current == null ? CasResult.ADDED : CasResult.REPLACED;
+            }
+        }
+
+        // Every pair, one stripe at a time.
+        @Override
+        void forEach(BiConsumer<String, String> action) {
+            for (Map<String, String> stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.forEach(action);
+                }
+            }
+        }
+
+        @Override
+        int size() {
+            int total = 0;
+            for (Map<String, String> stripe : stripes) {
+                synchronized (stripe) {
+                    total += stripe.size();
+                }
+            }
+            return total;
+        }
+    }
+
+    // Pairs kept off the heap as UTF-8, so that a node holding millions of
+    // them does not give the garbage collector millions of Strings to trace.
+    // Each of STRIPES stripes has its own lock, its own slabs of direct
+    // memory, and an open-addressing index: parallel arrays of hash codes
+    // and record addresses, probed linearly and at most half full, which
+    // costs 24 bytes of heap a pair. A record is
+    //   <int key length> <int value capacity> <int value length> <key> <value>
+    // A new value that fits the capacity overwrites the old one in place;
+    // otherwise the record is written again at the end of the slabs. Once
+    // more of a stripe's slabs is garbage than live, its records are copied
+    // into fresh ones.
+    public static final class OffHeapStore extends Store {
+        private static final int STRIPES = 64;
+        private static final int HEADER = 12;
+        private static final int FIRST_SLAB = 16 << 10;
+        private static final int MAX_SLAB = 256 << 10;
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        public OffHeapStore() {
+            for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+        }
+
+        // Never 0, which marks an empty slot. The stripe comes from the top
+        // bits and the slot from the bottom ones.
+        private static int hash(byte[] key) {
+            int h = Arrays.hashCode(key) * 0x9E3779B9;
+            return h == 0 ? 1 : h;
+        }
+
+        private Stripe stripe(int hash) {
+            return stripes[hash >>> 26];
+        }
+
+        private static byte[] utf8(String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        String get(String key) {
+            byte[] k = utf8(key);
+            int h = hash(k);
+            Stripe stripe = stripe(h);
+            synchronized (stripe) {
+                int slot = stripe.find(k, h);
+                return stripe.hashes[slot] == 0 ? null : stripe.value(stripe.addresses[slot]);
+            }
+        }
+
+        @Override
+        boolean containsKey(String key) {
+            byte[] k = utf8(key);
+            int h = hash(k);
+            Stripe stripe = stripe(h);
+            synchronized (stripe) {
+                return stripe.hashes[stripe.find(k, h)] != 0;
+            }
+        }
+
+        @Override
+        boolean put(String key, String value) {
+            byte[] k = utf8(key);
+            int h = hash(k);
+            Stripe stripe = stripe(h);
+            synchronized (stripe) {
+                boolean existed = stripe.set(k, h, utf8(value));
+                record(key, value);
+                return existed;
+            }
+        }
+
+        @Override
+        CasResult compareAndSet(String key, String expected, String newValue) {
+            byte[] k = utf8(key);
+            int h = hash(k);
+            Stripe stripe = stripe(h);
+            synchronized (stripe) {
+                int slot = stripe.find(k, h);
+                if (stripe.hashes[slot] != 0 && !stripe.valueEquals(stripe.addresses[slot], utf8(expected)))
+                    return CasResult.CONFLICT;
+                boolean existed = stripe.set(k, h, utf8(newValue));
+                record(key, newValue);
+                return existed ? CasResult.REPLACED : CasResult.ADDED;
+            }
+        }
+
+        @Override
+        void forEach(BiConsumer<String, String> action) {
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    for (int i = 0; i < stripe.hashes.length; i++)
+                        if (stripe.hashes[i] != 0) action.accept(stripe.key(stripe.addresses[i]), stripe.value(stripe.addresses[i]));
+                }
+            }
+        }
+
+        @Override
+        int size() {
+            int total = 0;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    total += stripe.count;
+                }
+            }
+            return total;
+        }
+
+        // Direct memory held in slabs, garbage included.
+        public long offHeapBytes() {
+            long total = 0;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    for (ByteBuffer slab : stripe.slabs) total += slab.capacity();
+                }
+            }
+            return total;
+        }
+
+        // An address is the slab's index in the high int and the offset in
+        // the low one.
+        private static final class Stripe {
+            int[] hashes = new int[16];
+            long[] addresses = new long[16];
+            int count;
+            final List<ByteBuffer> slabs = new ArrayList<>();
+            int top;
+            // Bytes handed out in slabs, and those still in live records.
+            long written, live;
+
+            // The slot holding key, or the empty slot where it would go.
+            int find(byte[] key, int h) {
+                int mask = hashes.length - 1;
+                for (int i = h & mask; ; i = (i + 1) & mask) {
+                    if (hashes[i] == 0 || hashes[i] == h && keyEquals(addresses[i], key)) return i;
+                }
+            }
+
+            boolean set(byte[] key, int h, byte[] value) {
+                int slot = find(key, h);
+                boolean existed = hashes[slot] != 0;
+                if (existed) {
+                    ByteBuffer slab = slabs.get((int) (addresses[slot] >>> 32));
+                    int at = (int) addresses[slot];
+                    if (value.length <= slab.getInt(at + 4)) {
+                        slab.putInt(at + 8, value.length).put(at + HEADER + key.length, value);
+                        return true;
+                    }
+                    live -= HEADER + key.length + slab.getInt(at + 4);
+                } else {
+                    hashes[slot] = h;
+                    if (++count * 2 > hashes.length) slot = grow(slot);
+                }
+                addresses[slot] = append(key, value);
+                if (written - live > Math.max(live, FIRST_SLAB)) compact();
+                return existed;
+            }
+
+            // A little room to grow, so a value that changes length by a
+            // few bytes can usually be overwritten in place.
+            private long append(byte[] key, byte[] value) {
+                int capacity = (value.length + 7) & ~7;
+                int size = HEADER + key.length + capacity;
+                long address = allocate(size);
+                ByteBuffer slab = slabs.get((int) (address >>> 32));
+                int at = (int) address;
+                slab.putInt(at, key.length).putInt(at + 4, capacity).putInt(at + 8, value.length)
+                        .put(at + HEADER, key).put(at + HEADER + key.length, value);
+                live += size;
+                return address;
+            }
+
+            private long allocate(int size) {
+                ByteBuffer last = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+                if (last == null || last.capacity() - top < size) {
+                    if (last != null) written += last.capacity() - top;
+                    int capacity = last == null ? FIRST_SLAB : Math.min(MAX_SLAB, last.capacity() * 2);
+                    slabs.add(ByteBuffer.allocateDirect(Math.max(capacity, size)));
+                    top = 0;
+                }
+                long address = (long) (slabs.size() - 1) << 32 | top;
+                top += size;
+                written += size;
+                return address;
+            }
+
+            // Doubles the index, and returns where the slot being filled
+            // has moved to.
+            private int grow(int filling) {
+                int[] oldHashes = hashes;
+                long[] oldAddresses = addresses;
+                hashes = new int[oldHashes.length * 2];
+                addresses = new long[oldHashes.length * 2];
+                int mask = hashes.length - 1, moved = -1;
+                for (int i = 0; i < oldHashes.length; i++) {
+                    if (oldHashes[i] == 0) continue;
+                    int j = oldHashes[i] & mask;
+                    while (hashes[j] != 0) j = (j + 1) & mask;
+                    hashes[j] = oldHashes[i];
+                    addresses[j] = oldAddresses[i];
+                    if (i == filling) moved = j;
+                }
+                return moved;
+            }
+
+            private void compact() {
+                List<ByteBuffer> old = new ArrayList<>(slabs);
+                slabs.clear();
+                top = 0;
+                written = live = 0;
+                for (int i = 0; i < hashes.length; i++) {
+                    if (hashes[i] == 0) continue;
+                    ByteBuffer from = old.get((int) (addresses[i] >>> 32));
+                    int at = (int) addresses[i];
+                    int size = HEADER + from.getInt(at) + from.getInt(at + 4);
+                    long address = allocate(size);
+                    slabs.get((int) (address >>> 32)).put((int) address, from, at, size);
+                    live += size;
+                    addresses[i] = address;
+                }
+            }
+
+            private boolean keyEquals(long address, byte[] key) {
+                ByteBuffer slab = slabs.get((int) (address >>> 32));
+                int at = (int) address;
+                if (slab.getInt(at) != key.length) return false;
+                for (int i = 0; i < key.length; i++) if (slab.get(at + HEADER + i) != key[i]) return false;
+                return true;
+            }
+
+            private boolean valueEquals(long address, byte[] value) {
+                ByteBuffer slab = slabs.get((int) (address >>> 32));
+                int at = (int) address, from = at + HEADER + slab.getInt(at);
+                if (slab.getInt(at + 8) != value.length) return false;
+                for (int i = 0; i < value.length; i++) if (slab.get(from + i) != value[i]) return false;
+                return true;
+            }
+
+            String key(long address) {
+                ByteBuffer slab = slabs.get((int) (address >>> 32));
+                int at = (int) address;
+                byte[] bytes = new byte[slab.getInt(at)];
+                slab.get(at + HEADER, bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            String value(long address) {
+                ByteBuffer slab = slabs.get((int) (address >>> 32));
+                int at = (int) address;
+                byte[] bytes = new byte[slab.getInt(at + 8)];
+                slab.get(at + HEADER + slab.getInt(at), bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    // An append-only log of key/value pairs in memory-mapped segment files
+    // of SEGMENT_SIZE bytes, numbered in order, in one directory. Each
+    // record is
+    //   <int size> <int key length> <key> <value> <int CRC-32>
+    // where size counts everything after itself and the CRC covers the key
+    // length, key and value. A zero size ends a segment's records, and so
+    // does a record whose CRC fails, which is how a write torn by a crash
+    // shows up.
+    //
+    // Records reach the disk in batches. Whenever anyone is waiting in
+    // synced(), a flusher thread forces out everything appended so far, so
+    // one fsync covers every write that arrived while the previous one ran.
+    //
+    // Once COMPACT_AFTER_SEGMENTS segments have filled up, a compactor
+    // thread writes the latest value of every key to one compacted file
+    // numbered like the last segment it replaces, and deletes the segments.
+    // Opening replays the newest compacted file and then every segment
+    // after it, in order.
+    static final class SegmentLog implements Closeable {
+        static final int SEGMENT_SIZE = 64 << 20;
+        static final int COMPACT_AFTER_SEGMENTS = 4;
+
+        private final Path directory;
+        private final Consumer<BiConsumer<String, String>> live;
+        private final CRC32 crc = new CRC32();
+        private final Object compacting = new Object();
+        private long sequence, compactedUpTo;
+        private MappedByteBuffer active;
+        private int forcedUpTo;
+        private CompletableFuture<Void> batch = new CompletableFuture<>();
+        private boolean syncRequested, compactionRequested, closed;
+        private final Thread flusher, compactor;
+        private final LongAdder appended = new LongAdder();
+        private final LongAdder syncs = new LongAdder();
+
+        // Replays what directory already holds into replay, then appends after
+        // it. live lists the current pairs when it is time to compact.
+        static SegmentLog open(Path directory, BiConsumer<String, String> replay,
+                               Consumer<BiConsumer<String, String>> live) throws IOException {
+            Files.createDirectories(directory);
+            long compacted = 0;
+            List<Long> segments = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".tmp")) Files.delete(file);
+                    else if (name.endsWith(".compact")) compacted = Math.max(compacted, numberOf(name));
+                    else if (name.endsWith(".log")) segments.add(numberOf(name));
+                }
+            }
+            // Finish off a compaction that stopped before cleaning up.
+            deleteUpTo(directory, compacted);
+            if (compacted > 0) {
+                try (FileChannel file = FileChannel.open(directory.resolve(fileName(compacted, ".compact")))) {
+                    replay(file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()), replay);
+                }
+            }
+            Collections.sort(segments);
+
+            SegmentLog log = new SegmentLog(directory, live, compacted);
+            for (long n : segments) {
+                if (n <= compacted) continue;
+                log.map(n);
+                int end = replay(log.active.duplicate(), replay);
+                // Clear anything torn past the last good record.
+                for (int i = end; i < Math.min(end + 4096, SEGMENT_SIZE); i++) log.active.put(i, (byte) 0);
+                log.active.position(end);
+                log.forcedUpTo = end;
+            }
+            if (log.active == null) log.map(compacted + 1);
+            log.flusher.start();
+            log.compactor.start();
+            return log;
+        }
+
+        private SegmentLog(Path directory, Consumer<BiConsumer<String, String>> live, long compactedUpTo) {
+            this.directory = directory;
+            this.live = live;
+            this.compactedUpTo = compactedUpTo;
+            flusher = new Thread(this::flushLoop, "log flusher");
+            flusher.setDaemon(true);
+            compactor = new Thread(this::compactLoop, "log compactor");
+            compactor.setDaemon(true);
+        }
+
+        private void map(long n) throws IOException {
+            Path segment = directory.resolve(fileName(n, ".log"));
+            boolean created = !Files.exists(segment);
+            try (FileChannel file = FileChannel.open(segment,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                active = file.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+            // Writes acknowledged from a new segment are only durable once
+            // its name is.
+            if (created) forceDirectory(directory);
+            sequence = n;
+            forcedUpTo = 0;
+        }
+
+        synchronized void append(String key, String value) throws IOException {
+            if (closed) throw new ClosedChannelException();
+            byte[] k = key.getBytes(StandardCharsets.UTF_8), v = value.getBytes(StandardCharsets.UTF_8);
+            int size = 4 + k.length + v.length + 4;
+            if (4 + size > SEGMENT_SIZE) throw new IOException("Record too large for a segment");
+            if (active.remaining() < 4 + size) roll(true);
+            int start = active.position();
+            active.putInt(size).putInt(k.length).put(k).put(v);
+            crc.reset();
+            crc.update(active.slice(start + 4, size - 4));
+            active.putInt((int) crc.getValue());
+            appended.increment();
+        }
+
+        // Completes once everything appended before the call is on disk.
+        synchronized CompletableFuture<Void> synced() {
+            syncRequested = true;
+            notifyAll();
+            return batch;
+        }
+
+        // compact() rolls with requestCompaction false, since it is about to
+        // compact the segment it closes itself.
+        private void roll(boolean requestCompaction) throws IOException {
+            active.force();
+            map(sequence + 1);
+            if (requestCompaction && sequence - 1 - compactedUpTo >= COMPACT_AFTER_SEGMENTS) {
+                compactionRequested = true;
+                notifyAll();
+            }
+        }
+
+        private void flushLoop() {
+            while (true) {
+                MappedByteBuffer segment;
+                int from, to;
+                CompletableFuture<Void> done;
+                synchronized (this) {
+                    while (!syncRequested && !closed) waitQuietly();
+                    if (!syncRequested) return;
+                    syncRequested = false;
+                    done = batch;
+                    batch = new CompletableFuture<>();
+                    segment = active;
+                    from = forcedUpTo;
+                    to = active.position();
+                }
+                // Appends carry on while this runs; they go in the next batch.
+                // Segments that filled up in the meantime were forced by roll.
+                segment.force(from, to - from);
+                synchronized (this) {
+                    if (segment == active) forcedUpTo = Math.max(forcedUpTo, to);
+                }
+                syncs.increment();
+                done.complete(null);
+            }
+        }
+
+        private void compactLoop() {
+            while (true) {
+                synchronized (this) {
+                    while (!compactionRequested && !closed) waitQuietly();
+                    if (closed) return;
+                    compactionRequested = false;
+                }
+                try {
+                    compact();
+                } catch (IOException | UncheckedIOException e) {
+                    // Leave the segments as they are and try again next time.
+                }
+            }
+        }
+
+        private void waitQuietly() {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closed = true;
+            }
+        }
+
+        // Writes the current pairs to a compacted file that replaces every
+        // segment before the active one. Writes go on into a fresh segment
+        // meanwhile; replaying that after the compacted file gives the same
+        // result whichever of its values the snapshot happened to catch.
+        void compact() throws IOException {
+            synchronized (compacting) {
+                long upTo;
+                synchronized (this) {
+                    if (closed) return;
+                    roll(false);
+                    upTo = sequence - 1;
+                }
+                writeCompacted(upTo);
+                // The rename must be on disk before the segments it replaces go.
+                forceDirectory(directory);
+                synchronized (this) {
+                    compactedUpTo = upTo;
+                    // Segments that filled while this ran asked against the
+                    // old compactedUpTo; only keep the request if they
+                    // still add up to a compaction's worth.
+                    compactionRequested = sequence - 1 - compactedUpTo >= COMPACT_AFTER_SEGMENTS;
+                }
+                deleteUpTo(directory, upTo);
+            }
+        }
+
+        private void writeCompacted(long upTo) throws IOException {
+            Path temporary = directory.resolve(fileName(upTo, ".compact.tmp"));
+            try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+                CRC32 check = new CRC32();
+                live.accept((key, value) -> {
+                    byte[] k = key.getBytes(StandardCharsets.UTF_8), v = value.getBytes(StandardCharsets.UTF_8);
+                    int size = 4 + k.length + v.length + 4;
+                    try {
+                        if (buffer.remaining() < 4 + size) drain(buffer, file);
+                        ByteBuffer out = buffer.remaining() < 4 + size ? ByteBuffer.allocate(4 + size) : buffer;
+                        int start = out.position();
+                        out.putInt(size).putInt(k.length).put(k).put(v);
+                        check.reset();
+                        check.update(out.slice(start + 4, size - 4));
+                        out.putInt((int) check.getValue());
+                        if (out != buffer) drain(out, file);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                drain(buffer, file);
+                file.force(true);
+            }
+            Files.move(temporary, directory.resolve(fileName(upTo, ".compact")), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static void drain(ByteBuffer buffer, FileChannel file) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) file.write(buffer);
+            buffer.clear();
+        }
+
+        // Makes the files created, renamed or deleted in directory so far
+        // survive a crash.
+        private static void forceDirectory(Path directory) throws IOException {
+            try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+                dir.force(true);
+            }
+        }
+
+        // Removes segments numbered up to n and compacted files older than n.
+        private static void deleteUpTo(Path directory, long n) throws IOException {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".log") && numberOf(name) <= n) Files.delete(file);
+                    if (name.endsWith(".compact") && numberOf(name) < n) Files.delete(file);
+                }
+            }
+        }
+
+        // Feeds every intact record to into, and returns where they end.
+        static int replay(ByteBuffer buffer, BiConsumer<String, String> into) {
+            CRC32 check = new CRC32();
+            byte[] bytes = new byte[256];
+            while (buffer.remaining() >= 4) {
+                int start = buffer.position();
+                int size = buffer.getInt();
+                if (size < 8 || size > buffer.remaining()) return start;
+                int keyLength = buffer.getInt();
+                if (keyLength < 0 || keyLength > size - 8) return start;
+                check.reset();
+                check.update(buffer.slice(start + 4, size - 4));
+                if ((int) check.getValue() != buffer.getInt(start + size)) return start;
+                int valueLength = size - 8 - keyLength;
+                if (bytes.length < Math.max(keyLength, valueLength)) bytes = new byte[Math.max(keyLength, valueLength)];
+                buffer.get(bytes, 0, keyLength);
+                String key = new String(bytes, 0, keyLength, StandardCharsets.UTF_8);
+                buffer.get(bytes, 0, valueLength);
+                into.accept(key, new String(bytes, 0, valueLength, StandardCharsets.UTF_8));
+                buffer.position(start + 4 + size);
+            }
+            return buffer.position();
+        }
+
+        private static String fileName(long n, String suffix) {
+            return String.format("%016d%s", n, suffix);
+        }
+
+        private static long numberOf(String name) {
+            return Long.parseLong(name.substring(0, name.indexOf('.')));
+        }
+
+        long appended() {
+            return appended.sum();
+        }
+
+        long syncs() {
+            return syncs.sum();
+        }
+
+        // Forces out what is left and stops the background threads.
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                active.force();
+                batch.complete(null);
+                notifyAll();
+            }
+            try {
+                flusher.join();
+                compactor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
@@ -0,0 +1,658 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Benchmarks for the hot paths in Node.
+//
+// Each micro-benchmark runs WARMUP_ITERATIONS untimed iterations and
+// then MEASURED_ITERATIONS timed ones of about a second each, and prints
+// the mean and standard deviation of the time per call across the timed
+// iterations.  Inputs come from fixed seeds, so two runs on the same
+// machine measure the same work.
+//
+//   hashing   one hashID: a fresh MessageDigest per call, the old hex
+//             hashify, HashID with its per-thread digest, HashKey.of,
+//             and a hit in Node's HashCache
+//   distance  the CRN distance between two hashIDs
+//   codec     decoding a W request and encoding its S reply, with the
+//             old String.split parsing and with MessageReader/Writer
+//   parse     parseMessage handling an R request, reply included
+//   nearest   parseMessage answering an N request from a node that
+//             knows NEAREST_CONTACTS others
+//   relay     parseMessage forwarding a V message to the next hop, and
+//             wrapping a request in V messages for a three-relay path
+//   inline    replies per second from one node answering R and N
+//   pooled    the same with requests handled on a thread pool
+//   cluster   reads per second through CLUSTER_NODES nodes on loopback
+//   bulk      writeAll and readAll of BULK_KEYS keys across BULK_NODES
+//             nodes, against writing and reading keys one at a time
+//   restart   a node of RESTART_NODES restarting with its saved contacts,
+//             some of which have gone, against one that only knows a seed
+//   store     STORE_KEYS pairs in the on-heap and the off-heap store: the
+//             heap and direct memory they take, and the time to fill them,
+//             read them and overwrite them, with the GC time that costs
+//   log       LOG_WRITES writes to a store kept in a SegmentLog, then
+//             writes from CLIENTS threads that each wait for the disk,
+//             recovery from the log, compaction and recovery after it
+//
+// Build and run from the directory holding Node.java, with no argument
+// for everything or with the names of the benchmarks to run. Node.java
+// holds non-ASCII text, so the encoding must be given on a machine whose
+// default is not UTF-8:
+//   javac -encoding UTF-8 -d out Node.java CRN/src/HashID.java NodeBenchmark.java
+//   java -cp out NodeBenchmark
+//   java -cp out NodeBenchmark parse nearest relay
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Stack;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+class NodeBenchmark {
+    static final int BASE_PORT = 20300;
+    static final int WARMUP_ITERATIONS = 3;
+    static final int MEASURED_ITERATIONS = 5;
+    static final long ITERATION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    static final int KNOWN_NODES = 200;
+    static final List<String> RELAY_PATH = List.of("N:relay-one", "N:relay-two", "N:relay-three");
+    static final int NEAREST_CONTACTS = 2000;
+    static final int CLIENTS = 8;
+    static final int CLUSTER_NODES = 16;
+    static final int CLUSTER_KEYS = 256;
+    static final int CLUSTER_WINDOW = 32;
+    static final int BULK_NODES = 64;
+    static final int BULK_KEYS = 2000;
+    static final int BULK_SINGLES = 200;
+    static final int RESTART_NODES = 64;
+    static final int RESTART_GONE = 8;
+    static final int RESTART_KEYS = 100;
+    static final int STORE_KEYS = 1_000_000;
+    static final int STORE_VALUE_BYTES = 64;
+    static final int LOG_WRITES = 1_200_000;
+    static final int LOG_KEYS = 200_000;
+    static final int LOG_VALUE_BYTES = 256;
+    static final int SECONDS = 5;
+    static final long SEED = 23;
+
+    static int nextPort = BASE_PORT;
+    static volatile int sink;
+
+    interface Benchmark {
+        void run() throws Exception;
+    }
+
+    interface Op {
+        int run(int i) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Benchmark> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("hashing", NodeBenchmark::hashing);
+        benchmarks.put("distance", NodeBenchmark::distance);
+        benchmarks.put("codec", NodeBenchmark::codec);
+        benchmarks.put("parse", NodeBenchmark::parse);
+        benchmarks.put("nearest", NodeBenchmark::nearest);
+        benchmarks.put("relay", NodeBenchmark::relay);
+        benchmarks.put("inline", () -> report("inline", requestThroughput(null)));
+        benchmarks.put("pooled", () -> {
+            ExecutorService pool = new ThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(1024));
+            report("pooled", requestThroughput(pool));
+            pool.shutdownNow();
+        });
+        benchmarks.put("cluster", NodeBenchmark::cluster);
+        benchmarks.put("bulk", NodeBenchmark::bulk);
+        benchmarks.put("restart", NodeBenchmark::restart);
+        benchmarks.put("store", NodeBenchmark::store);
+        benchmarks.put("log", NodeBenchmark::log);
+
+        List<String> selected = args.length > 0 ? Arrays.asList(args) : new ArrayList<>(benchmarks.keySet());
+        System.out.printf("# %s %s, %s %s, %d cpus%n", System.getProperty("java.vm.name"),
+                System.getProperty("java.version"), System.getProperty("os.name"),
+                System.getProperty("os.arch"), Runtime.getRuntime().availableProcessors());
+        for (String name : selected) {
+            Benchmark benchmark = benchmarks.get(name);
+            if (benchmark == null) {
+                System.err.println("Unknown benchmark " + name + "; try one of " + benchmarks.keySet());
+                System.exit(1);
+            }
+            System.out.println("## " + name);
+            benchmark.run();
+        }
+        System.exit(0);
+    }
+
+    // Runs op back to back for whole iterations and reports ns per call.
+    static void measure(String name, Op op) throws Exception {
+        double[] nanosPerCall = new double[MEASURED_ITERATIONS];
+        int i = 0;
+        for (int iteration = -WARMUP_ITERATIONS; iteration < MEASURED_ITERATIONS; ++iteration) {
+            long start = System.nanoTime(), elapsed;
+            int calls = 0, acc = 0;
+            do {
+                for (int batch = 0; batch < 1000; ++batch, ++calls) acc += op.run(i++);
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ITERATION_NANOS);
+            sink += acc;
+            if (iteration >= 0) nanosPerCall[iteration] = elapsed / (double) calls;
+        }
+        double mean = Arrays.stream(nanosPerCall).average().orElse(0);
+        double sd = Math.sqrt(Arrays.stream(nanosPerCall).map(x -> (x - mean) * (x - mean)).sum()
+                / Math.max(1, MEASURED_ITERATIONS - 1));
+        System.out.printf("%-26s %10.1f +- %6.1f ns/call%n", name, mean, sd);
+    }
+
+    static void report(String name, double perSecond) {
+        System.out.printf("%-26s %10.0f replies/s%n", name, perSecond);
+    }
+
+    static void hashing() throws Exception {
+        int keys = 1024;
+        String[] names = new String[keys];
+        for (int i = 0; i < keys; ++i) names[i] = "N:node" + i;
+        Node.HashCache cache = new Node.HashCache(4096);
+
+        measure("getInstance per call", i -> {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(names[i & (keys - 1)].getBytes(StandardCharsets.UTF_8));
+            return md.digest()[0];
+        });
+        measure("hex hashify (old Node)", i -> {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            StringBuilder out = new StringBuilder();
+            for (byte b : md.digest(names[i & (keys - 1)].getBytes(StandardCharsets.UTF_8))) {
+                out.append(String.format("%02x", b));
+            }
+            return out.charAt(0);
+        });
+        measure("HashID.computeHashID", i -> HashID.computeHashID(names[i & (keys - 1)])[0]);
+        measure("HashKey.of", i -> (int) Node.HashKey.of(names[i & (keys - 1)]).w0());
+        measure("HashCache hit", i -> (int) cache.get(names[i & (keys - 1)]).w0());
+    }
+
+    static void distance() throws Exception {
+        int keys = 1024;
+        Node.HashKey[] hashes = new Node.HashKey[keys];
+        for (int i = 0; i < keys; ++i) hashes[i] = Node.HashKey.of("N:node" + i);
+        measure("HashKey.distance", i -> hashes[i & (keys - 1)].distance(hashes[(i * 7 + 3) & (keys - 1)]));
+    }
+
+    static void codec() throws Exception {
+        String value = "Belonging to a man. O, be some other name!";
+        byte[] request = ("AB W " + wrap("D:Juliet-8") + wrap(value)).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer packet = ByteBuffer.allocateDirect(request.length).put(request).flip();
+        Node.MessageWriter out = new Node.MessageWriter(ByteBuffer.allocateDirect(2048));
+
+        measure("split decode", i -> {
+            String msg = new String(request, StandardCharsets.UTF_8);
+            String[] tokens = msg.stripLeading().split(" ", 3);
+            String[] kv = tokens[2].trim().split(" ", 4);
+            return tokens[0].length() + kv[1].length() + kv[3].length();
+        });
+        measure("MessageReader decode", i -> {
+            Node.MessageReader in = new Node.MessageReader(packet.duplicate());
+            int tx = in.txId();
+            char type = in.type();
+            return tx + type + in.string().length() + in.string().length();
+        });
+        measure("String encode", i -> ("AB" + " S Y " + wrap(value)).getBytes().length);
+        measure("MessageWriter encode", i -> {
+            out.buffer.clear();
+            out.begin(0x4142, 'S').status('Y').string(value);
+            return out.buffer.position();
+        });
+    }
+
+    static void parse() throws Exception {
+        try (DatagramChannel peer = sinkChannel()) {
+            Node node = benchNode();
+            node.write("D:Juliet-8", "Belonging to a man. O, be some other name!");
+            InetSocketAddress from = (InetSocketAddress) peer.getLocalAddress();
+            ByteBuffer request = packet("AB R " + wrap("D:Juliet-8"));
+            measure("parseMessage R", i -> handle(node, request, i, from));
+        }
+    }
+
+    static void nearest() throws Exception {
+        try (DatagramChannel peer = sinkChannel()) {
+            Node node = benchNode();
+            InetSocketAddress from = (InetSocketAddress) peer.getLocalAddress();
+            for (int i = 0; i < NEAREST_CONTACTS; ++i) {
+                handle(node, packet("AB W " + wrap("N:peer" + i) + wrap("127.0.0.1:" + (30000 + i))), i, from);
+            }
+            Random random = new Random(SEED);
+            ByteBuffer[] requests = new ByteBuffer[64];
+            for (int i = 0; i < requests.length; ++i) {
+                StringBuilder hash = new StringBuilder("AB N ");
+                for (int d = 0; d < 64; ++d) hash.append(Character.forDigit(random.nextInt(16), 16));
+                requests[i] = packet(hash.toString());
+            }
+            System.out.println("known nodes: " + node.getKnownNodeNames().size());
+            measure("parseMessage N", i -> handle(node, requests[i & 63], i, from));
+        }
+    }
+
+    static void relay() throws Exception {
+        try (DatagramChannel peer = sinkChannel(); DatagramChannel next = sinkChannel()) {
+            Node node = benchNode();
+            InetSocketAddress from = (InetSocketAddress) peer.getLocalAddress();
+            InetSocketAddress nextHop = (InetSocketAddress) next.getLocalAddress();
+            handle(node, packet("AB W " + wrap("N:next") + wrap("127.0.0.1:" + nextHop.getPort())), 0, from);
+            ByteBuffer request = packet("AB V " + wrap("N:next") + "CD R " + wrap("D:Juliet-8"));
+            measure("parseMessage V", i -> handle(node, request, i, from));
+        }
+
+        // Wrapping a request to go out along RELAY_PATH: walking the path
+        // on every send, as sendRequest used to, against a RelayHeader.
+        Stack<String> path = new Stack<>();
+        path.addAll(RELAY_PATH);
+        Node.RelayHeader header = Node.RelayHeader.of(path);
+        Node.MessageWriter out = new Node.MessageWriter(ByteBuffer.allocate(1024));
+        measure("relay header, rebuilt", i -> {
+            out.buffer.clear();
+            String target = "N:target-" + (i & 7);
+            List<String> hops = new ArrayList<>(path.subList(1, path.size()));
+            if (!path.peek().equals(target)) hops.add(target);
+            String route = path.get(0) + ">" + String.join(">", hops);
+            for (String hop : hops) out.begin(i, 'V').string(hop);
+            return out.buffer.position() + route.length();
+        });
+        measure("relay header, cached", i -> {
+            out.buffer.clear();
+            String target = "N:target-" + (i & 7);
+            String route = header.routeTo(target);
+            header.write(out, i, target);
+            return out.buffer.position() + route.length();
+        });
+    }
+
+    static double requestThroughput(ExecutorService executor) throws Exception {
+        int port = nextPort++;
+        Node node = new Node();
+        node.setNodeName("N:bench" + port);
+        node.openPort(port);
+        node.setRequestExecutor(executor);
+
+        // Fill the address table the same way other nodes would, with W requests.
+        try (DatagramSocket loader = new DatagramSocket()) {
+            for (int i = 0; i < KNOWN_NODES; ++i) {
+                send(loader, port, txn(i) + " W " + wrap("N:peer" + i) + wrap("127.0.0.1:" + (30000 + i)));
+            }
+        }
+        Thread.sleep(500);
+
+        String hash = "0f".repeat(32);
+        AtomicInteger sequence = new AtomicInteger(KNOWN_NODES);
+        LongAdder replies = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SECONDS);
+        Thread[] clients = new Thread[CLIENTS];
+        for (int c = 0; c < CLIENTS; ++c) {
+            clients[c] = new Thread(() -> {
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.setSoTimeout(20);
+                    byte[] buffer = new byte[2048];
+                    for (int i = 0; System.nanoTime() < deadline; ++i) {
+                        String tx = txn(sequence.getAndIncrement());
+                        send(socket, port, i % 2 == 0 ? tx + " N " + hash : tx + " R " + wrap("D:missing"));
+                        try {
+                            socket.receive(new DatagramPacket(buffer, buffer.length));
+                            replies.increment();
+                        } catch (SocketTimeoutException lost) {
+                            // Dropped by the node; move on to the next request.
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread client : clients) client.join();
+        return replies.sum() / (double) SECONDS;
+    }
+
+    // A small network on loopback where every node knows every other and
+    // each key sits on the three nodes closest to it.  One node keeps
+    // CLUSTER_WINDOW reads in flight with readAsync.
+    static void cluster() throws Exception {
+        Node[] nodes = startCluster(CLUSTER_NODES);
+        String[] keys = new String[CLUSTER_KEYS];
+        for (int k = 0; k < CLUSTER_KEYS; ++k) {
+            keys[k] = "D:bench-" + k;
+            Node.HashKey hash = Node.HashKey.of(keys[k]);
+            Integer[] order = new Integer[CLUSTER_NODES];
+            for (int i = 0; i < CLUSTER_NODES; ++i) order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(i -> hash.distance(Node.HashKey.of("N:cluster" + i))));
+            for (int r = 0; r < 3; ++r) nodes[order[r]].write(keys[k], "value-" + k);
+        }
+        Thread.sleep(500);
+
+        Node client = nodes[0];
+        Semaphore window = new Semaphore(CLUSTER_WINDOW);
+        LongAdder found = new LongAdder(), missed = new LongAdder();
+        long start = System.nanoTime(), deadline = start + TimeUnit.SECONDS.toNanos(SECONDS);
+        for (int i = 0; System.nanoTime() < deadline; ++i) {
+            window.acquire();
+            client.readAsync(keys[i % CLUSTER_KEYS]).whenComplete((value, error) -> {
+                if (value != null) found.increment();
+                else missed.increment();
+                window.release();
+            });
+        }
+        window.acquire(CLUSTER_WINDOW);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-26s %10.0f reads/s  (%d found, %d not found)%n", "cluster readAsync",
+                (found.sum() + missed.sum()) / seconds, found.sum(), missed.sum());
+    }
+
+    // Bulk operations against the same number of single ones, one at a time.
+    static void bulk() throws Exception {
+        Node[] nodes = startCluster(BULK_NODES);
+        Node client = nodes[0];
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int k = 0; k < BULK_KEYS; ++k) entries.put("D:bulk-" + k, "value-" + k);
+        List<String> keys = new ArrayList<>(entries.keySet());
+
+        long start = System.nanoTime();
+        long written = client.writeAll(entries).values().stream().filter(ok -> ok).count();
+        report("writeAll", BULK_KEYS, written, start);
+        start = System.nanoTime();
+        int found = client.readAll(keys).size();
+        report("readAll", BULK_KEYS, found, start);
+
+        // A second client, so that its caches hold nothing yet.
+        Node other = nodes[1];
+        start = System.nanoTime();
+        int ok = 0;
+        for (int k = 0; k < BULK_SINGLES; ++k) if (other.write("D:single-" + k, "value-" + k)) ++ok;
+        report("write one at a time", BULK_SINGLES, ok, start);
+        start = System.nanoTime();
+        ok = 0;
+        for (int k = 0; k < BULK_SINGLES; ++k) if (other.read("D:bulk-" + k) != null) ++ok;
+        report("read one at a time", BULK_SINGLES, ok, start);
+    }
+
+    // A node restarting with the contacts it saved when it closed, some of
+    // which have gone since, against one that knows only a seed: the time
+    // to its first read, which contacts it still holds once the pings are
+    // over, and the time to read every key after that.
+    static void restart() throws Exception {
+        int firstPort = nextPort;
+        Node[] nodes = startCluster(RESTART_NODES);
+        List<String> keys = new ArrayList<>();
+        for (int k = 0; k < RESTART_KEYS; ++k) keys.add("D:restart-" + k);
+        for (String key : keys) nodes[1].writeAsync(key, "value").join();
+
+        Path file = Files.createTempFile("node-contacts", ".txt");
+        try {
+            nodes[0].setContactsFile(file);
+            nodes[0].close();
+            for (int i = RESTART_NODES - RESTART_GONE; i < RESTART_NODES; ++i) nodes[i].close();
+
+            Node warm = new Node();
+            warm.setNodeName("N:cluster0");
+            warm.setContactsFile(file);
+            restarted("with contacts", warm, keys, () -> {});
+            warm.close();
+
+            Node cold = new Node();
+            cold.setNodeName("N:cluster0");
+            restarted("from one seed", cold, keys, () -> {
+                try (DatagramSocket loader = new DatagramSocket()) {
+                    send(loader, nextPort - 1, txn(0) + " W " + wrap("N:cluster1") + wrap("127.0.0.1:" + (firstPort + 1)));
+                }
+            });
+            cold.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    static void restarted(String name, Node node, List<String> keys, Benchmark bootstrap) throws Exception {
+        long start = System.nanoTime();
+        node.openPort(nextPort++);
+        bootstrap.run();
+        String first = node.read(keys.get(0));
+        System.out.printf("%-26s %10.1f ms to first read (%s)%n", "restart " + name,
+                (System.nanoTime() - start) / 1e6, first != null ? "found" : "missing");
+        Thread.sleep(3000);
+        int alive = 0, gone = 0;
+        for (int i = 1; i < RESTART_NODES; ++i) {
+            if (!node.isActive("N:cluster" + i)) continue;
+            if (i < RESTART_NODES - RESTART_GONE) ++alive;
+            else ++gone;
+        }
+        System.out.printf("%-26s %10d of %d live nodes known, %d of %d gone%n", "", alive,
+                RESTART_NODES - RESTART_GONE - 1, gone, RESTART_GONE);
+        start = System.nanoTime();
+        report("then readAll", keys.size(), node.readAll(keys).size(), start);
+    }
+
+    static void store() throws Exception {
+        char[] filler = new char[STORE_VALUE_BYTES];
+        Arrays.fill(filler, 'v');
+        String value = new String(filler);
+        long payload = 0;
+        for (int k = 0; k < STORE_KEYS; ++k) payload += 2 * ("D:store-" + k).length() + STORE_VALUE_BYTES;
+        System.out.printf("%-26s %10.1f MB of keys and values%n", "payload", payload / 1e6);
+        storeFootprint("on heap", new Node.StripedStore(), value, payload);
+        storeFootprint("off heap", new Node.OffHeapStore(), value, payload);
+    }
+
+    static void storeFootprint(String name, Node.Store store, String value, long payload) throws Exception {
+        long before = heapUsed(), gc = gcMillis();
+        long start = System.nanoTime();
+        for (int k = 0; k < STORE_KEYS; ++k) store.put("D:store-" + k, value + "D:store-" + k);
+        double fill = (System.nanoTime() - start) / 1e6;
+        long heap = heapUsed() - before;
+        long direct = store instanceof Node.OffHeapStore offHeap ? offHeap.offHeapBytes() : 0;
+        System.out.printf("%-26s %10.1f MB heap + %.1f MB direct, %.1fx payload%n", name, heap / 1e6,
+                direct / 1e6, (heap + direct) / (double) payload);
+
+        Random random = new Random(SEED);
+        start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < STORE_KEYS; ++i) if (store.get("D:store-" + random.nextInt(STORE_KEYS)) != null) ++found;
+        double read = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        for (int i = 0; i < STORE_KEYS; ++i) {
+            String key = "D:store-" + random.nextInt(STORE_KEYS);
+            store.put(key, i % 10 + value + key);
+        }
+        double overwrite = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%-26s %10.0f ns/put fill, %.0f ns/get, %.0f ns/put overwrite, %d ms GC (%d found)%n",
+                "", fill * 1e6 / STORE_KEYS, read * 1e6 / STORE_KEYS, overwrite * 1e6 / STORE_KEYS,
+                gcMillis() - gc, found);
+        sink += store.size();
+    }
+
+    static long heapUsed() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, collector.getCollectionTime());
+        return total;
+    }
+
+    // The log under a store, in a fresh directory that is removed afterwards.
+    static void log() throws Exception {
+        Path dir = Files.createTempDirectory("node-log");
+        char[] filler = new char[LOG_VALUE_BYTES];
+        Arrays.fill(filler, 'v');
+        String padding = new String(filler);
+        try {
+            Node.StripedStore store = openStore(dir);
+            long start = System.nanoTime();
+            for (int i = 0; i < LOG_WRITES; ++i) store.put("D:log-" + i % LOG_KEYS, i + padding);
+            rate("append", LOG_WRITES, start);
+
+            // Durable writes: each thread waits for its write to reach the disk.
+            Node.StripedStore durable = store;
+            Node.SegmentLog log = store.log;
+            long syncs = log.syncs(), writes = log.appended();
+            LongAdder done = new LongAdder();
+            CountDownLatch finished = new CountDownLatch(CLIENTS);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SECONDS);
+            start = System.nanoTime();
+            for (int t = 0; t < CLIENTS; ++t) {
+                int thread = t;
+                new Thread(() -> {
+                    for (int i = 0; System.nanoTime() < deadline; ++i) {
+                        durable.put("D:log-" + (thread * LOG_KEYS / CLIENTS + i % (LOG_KEYS / CLIENTS)), "durable-" + i);
+                        log.synced().join();
+                        done.increment();
+                    }
+                    finished.countDown();
+                }).start();
+            }
+            finished.await();
+            rate("durable write, " + CLIENTS + " threads", done.sum(), start);
+            syncs = log.syncs() - syncs;
+            System.out.printf("%-26s %10d syncs, %.1f writes/sync%n", "", syncs,
+                    (log.appended() - writes) / (double) Math.max(1, syncs));
+            log.close();
+            System.out.printf("%-26s %s%n", "", files(dir));
+
+            start = System.nanoTime();
+            store = openStore(dir);
+            rate("recover", store.size(), start);
+
+            start = System.nanoTime();
+            store.log.compact();
+            rate("compact", store.size(), start);
+            store.log.close();
+            System.out.printf("%-26s %s%n", "", files(dir));
+
+            start = System.nanoTime();
+            store = openStore(dir);
+            rate("recover compacted", store.size(), start);
+            store.log.close();
+        } finally {
+            try (var files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    static Node.StripedStore openStore(Path dir) throws Exception {
+        Node.StripedStore store = new Node.StripedStore();
+        store.log = Node.SegmentLog.open(dir, store::put, store::forEach);
+        return store;
+    }
+
+    static String files(Path dir) throws Exception {
+        try (var files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList().toString();
+        }
+    }
+
+    static void rate(String name, long records, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-26s %10.0f records/s (%d in %.2f s)%n", name, records / seconds, records, seconds);
+    }
+
+    static void report(String name, int keys, long succeeded, long start) {
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("%-26s %10.1f ms for %d keys, %.3f ms/key (%d ok)%n", name, millis, keys, millis / keys, succeeded);
+    }
+
+    // Nodes on consecutive loopback ports, each told about all of the others.
+    static Node[] startCluster(int n) throws Exception {
+        Node[] nodes = new Node[n];
+        int firstPort = nextPort;
+        nextPort += n;
+        for (int i = 0; i < n; ++i) {
+            nodes[i] = new Node();
+            nodes[i].setNodeName("N:cluster" + i);
+            nodes[i].openPort(firstPort + i);
+        }
+        try (DatagramSocket loader = new DatagramSocket()) {
+            int tx = 0;
+            for (int i = 0; i < n; ++i) {
+                for (int j = 0; j < n; ++j) {
+                    if (i == j) continue;
+                    send(loader, firstPort + i, txn(tx++) + " W " + wrap("N:cluster" + j)
+                            + wrap("127.0.0.1:" + (firstPort + j)));
+                    if (tx % 256 == 0) Thread.sleep(1);
+                }
+            }
+        }
+        Thread.sleep(200);
+        return nodes;
+    }
+
+    static Node benchNode() throws Exception {
+        Node node = new Node();
+        int port = nextPort++;
+        node.setNodeName("N:bench" + port);
+        node.openPort(port);
+        return node;
+    }
+
+    // Somewhere for replies to go that never reads them.
+    static DatagramChannel sinkChannel() throws Exception {
+        return DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    static ByteBuffer packet(String msg) {
+        byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocateDirect(data.length).put(data).flip();
+    }
+
+    // Gives each call its own transaction ID so the duplicate filter lets it through.
+    static int handle(Node node, ByteBuffer packet, int i, InetSocketAddress from) {
+        String tx = txn(i);
+        packet.put(0, (byte) tx.charAt(0)).put(1, (byte) tx.charAt(1));
+        node.parseMessage(packet.duplicate(), from);
+        return 1;
+    }
+
+    // Transaction IDs cycle through every printable pair, so no ID comes
+    // round again while the node's duplicate filter still remembers it.
+    static String txn(int i) {
+        int n = Math.floorMod(i, 94 * 94);
+        return "" + (char) ('!' + n / 94) + (char) ('!' + n % 94);
+    }
+
+    static String wrap(String s) {
+        return s.chars().filter(c -> c == ' ').count() + " " + s + " ";
+    }
+
+    static void send(DatagramSocket socket, int port, String msg) throws Exception {
+        byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), port));
+    }
+}